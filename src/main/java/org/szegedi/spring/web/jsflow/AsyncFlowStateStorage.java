@@ -0,0 +1,339 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.NativeContinuation;
+import org.springframework.beans.factory.DisposableBean;
+import org.szegedi.spring.web.jsflow.support.AbstractFlowStateStorage;
+import org.szegedi.spring.web.jsflow.support.ReservableFlowStateStorage;
+
+/**
+ * <p>
+ * A flow state storage that takes the writing of states off the request
+ * thread. Storing a state reserves its id in the backing storage, serializes
+ * and encodes the state and returns the id right away; the serialized state is
+ * then written to the backing storage by a background thread while the
+ * controller renders the view. Retrieving a state whose write is still in
+ * progress waits for the write to complete.
+ * </p>
+ * <p>
+ * Optionally, the serialization can be taken off the request thread as well
+ * (see {@link #setCopyInMemory(boolean)}): the request thread then only makes
+ * an in-memory copy of the continuation, which is serialized by the
+ * background thread. The view is free to modify the flow's objects, as it
+ * can't affect the copy. Continuations referencing objects that can't be
+ * copied in memory are serialized on the request thread instead.
+ * </p>
+ * <p>
+ * The backing storage must be a {@link ReservableFlowStateStorage}, i.e. a
+ * {@link JdbcFlowStateStorage}. The request thread writes the state itself if
+ * the backing storage can't reserve ids as configured (a
+ * {@link JdbcFlowStateStorage} without a flow state id generator), if
+ * {@link #setMaxPendingWrites(int) the queue of pending writes} is full, or if
+ * this storage was already destroyed. The backing
+ * storage receives the states in serialized form, encoded with the binary
+ * state codec of this storage.
+ * </p>
+ * <p>
+ * A state whose write failed is remembered for the
+ * {@link #setWriteTimeout(long) write timeout}, and retrieving it within that
+ * time throws a {@link FlowStateStorageException} reporting the failure
+ * instead of treating the state as missing.
+ * </p>
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class AsyncFlowStateStorage extends AbstractFlowStateStorage implements DisposableBean {
+    private static final Log log = LogFactory.getLog(AsyncFlowStateStorage.class);
+
+    private ReservableFlowStateStorage backingStorage;
+    private int writerThreads = 1;
+    private int maxPendingWrites = 1000;
+    private long writeTimeout = 30000;
+    private boolean copyInMemory;
+
+    private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    private final Queue<PendingWrite> failedWrites = new ConcurrentLinkedQueue<>();
+    private ThreadPoolExecutor writer;
+
+    /**
+     * Sets the backing storage that states are read from and written to.
+     * Mandatory.
+     *
+     * @param backingStorage
+     */
+    public void setBackingStorage(final ReservableFlowStateStorage backingStorage) {
+        this.backingStorage = backingStorage;
+    }
+
+    /**
+     * Sets the number of background threads persisting the states. Defaults
+     * to 1.
+     *
+     * @param writerThreads
+     */
+    public void setWriterThreads(final int writerThreads) {
+        if (writerThreads <= 0) {
+            throw new IllegalArgumentException("writerThreads <= 0");
+        }
+        this.writerThreads = writerThreads;
+    }
+
+    /**
+     * Sets the maximum number of states queued for persisting. Defaults to
+     * 1000.
+     *
+     * @param maxPendingWrites
+     */
+    public void setMaxPendingWrites(final int maxPendingWrites) {
+        if (maxPendingWrites <= 0) {
+            throw new IllegalArgumentException("maxPendingWrites <= 0");
+        }
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a retrieval waits for the pending
+     * write of the state to complete. A failed write is reported to the
+     * retrievals of its state for the same time. Defaults to 30000.
+     *
+     * @param writeTimeout
+     */
+    public void setWriteTimeout(final long writeTimeout) {
+        if (writeTimeout <= 0) {
+            throw new IllegalArgumentException("writeTimeout <= 0");
+        }
+        this.writeTimeout = writeTimeout;
+    }
+
+    /**
+     * Sets whether the continuation is copied in memory on the request
+     * thread and serialized by the background thread, instead of being
+     * serialized on the request thread. The copy shares the objects that
+     * serialization would replace with stubs and copies everything else, the
+     * same way deserializing the state in this JVM would; continuations
+     * referencing objects it can't copy fall back to serialization. Defaults
+     * to false.
+     *
+     * @param copyInMemory
+     */
+    public void setCopyInMemory(final boolean copyInMemory) {
+        this.copyInMemory = copyInMemory;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        if (backingStorage == null) {
+            throw new IllegalArgumentException("backingStorage must be set");
+        }
+        writer = new ThreadPoolExecutor(writerThreads, writerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxPendingWrites), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread t = new Thread(r, "AsyncFlowStateStorage writer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                        // Unlike CallerRunsPolicy, also runs the task after
+                        // shutdown instead of dropping it
+                        r.run();
+                    }
+                });
+    }
+
+    /**
+     * Waits for the pending writes to complete and stops the background
+     * threads.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state, final String flowId) {
+        final String id;
+        // The view can modify the flow's objects while the state is written,
+        // so it is either copied or serialized right away
+        NativeContinuation copy = null;
+        byte[] serialized = null;
+        try {
+            id = reserveStateId(backingStorage, request);
+            if (id == null) {
+                return super.storeState(request, state, flowId);
+            }
+            if (copyInMemory) {
+                copy = cloneContinuation(state, null);
+            }
+            if (copy == null) {
+                serialized = serializeState(state);
+            }
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new FlowStateStorageException("Failed to store state", e);
+        }
+        removeFailedWrites();
+        final NativeContinuation finalCopy = copy;
+        final byte[] finalSerialized = serialized;
+        final PendingWrite pendingWrite = new PendingWrite(id, flowId, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                try {
+                    final byte[] b = finalSerialized != null ? finalSerialized : serializeState(finalCopy);
+                    storeSerializedState(backingStorage, null, id, b, flowId);
+                    return b;
+                } catch (final Exception e) {
+                    log.error("Failed to write state " + id, e);
+                    throw e;
+                }
+            }
+        });
+        pendingWrites.put(id, pendingWrite);
+        writer.execute(pendingWrite);
+        return id;
+    }
+
+    /**
+     * Forgets the failed writes older than the write timeout.
+     */
+    private void removeFailedWrites() {
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final PendingWrite failedWrite = failedWrites.peek();
+            if (failedWrite == null || now - failedWrite.failed < writeTimeout) {
+                break;
+            }
+            if (failedWrites.remove(failedWrite)) {
+                pendingWrites.remove(failedWrite.id, failedWrite);
+            }
+        }
+    }
+
+    @Override
+    protected byte[] getSerializedState(final HttpServletRequest request, final String id) throws Exception {
+        final PendingWrite pendingWrite = pendingWrites.get(id);
+        if (pendingWrite != null) {
+            return awaitWrite(pendingWrite, id);
+        }
+        return getSerializedState(backingStorage, request, id);
+    }
+
+    private byte[] awaitWrite(final Future<byte[]> pendingWrite, final String id) throws Exception {
+        try {
+            return pendingWrite.get(writeTimeout, TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException e) {
+            throw new FlowStateStorageException("Failed to write state " + id, e.getCause());
+        } catch (final TimeoutException e) {
+            throw new FlowStateStorageException("Timed out waiting for the write of state " + id, e);
+        }
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state) throws Exception {
+        return storeSerializedState(request, state, null);
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state, final String flowId)
+            throws Exception {
+        return storeSerializedState(backingStorage, request, state, flowId);
+    }
+
+    @Override
+    public String getFlowId(final HttpServletRequest request, final String id) {
+        final PendingWrite pendingWrite = pendingWrites.get(id);
+        return pendingWrite != null ? pendingWrite.flowId : backingStorage.getFlowId(request, id);
+    }
+
+    /**
+     * Waits for the pending writes of the flow to complete, and purges the
+     * flow from the backing storage.
+     */
+    @Override
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        for (final Map.Entry<String, PendingWrite> entry: pendingWrites.entrySet()) {
+            if (flowId.equals(entry.getValue().flowId)) {
+                try {
+                    awaitWrite(entry.getValue(), entry.getKey());
+                } catch (final Exception e) {
+                    log.warn("Pending write of state " + entry.getKey() + " failed", e);
+                    // The state can no longer be retrieved anyway
+                    pendingWrites.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        backingStorage.purgeFlow(request, flowId);
+    }
+
+    private class PendingWrite extends FutureTask<byte[]> {
+        final String id;
+        final String flowId;
+        volatile long failed;
+
+        PendingWrite(final String id, final String flowId, final Callable<byte[]> callable) {
+            super(callable);
+            this.id = id;
+            this.flowId = flowId;
+        }
+
+        /**
+         * Once written, the state is retrieved from the backing storage. It
+         * is removed only after the write completed, so a concurrent
+         * retrieval either finds the pending write or the written state. A
+         * failed write is kept so that retrievals report the failure.
+         */
+        @Override
+        protected void done() {
+            try {
+                get();
+            } catch (final ExecutionException e) {
+                failed = System.currentTimeMillis();
+                failedWrites.add(this);
+                return;
+            } catch (final Exception e) {
+                // Cancelled or interrupted; nothing to report
+            }
+            pendingWrites.remove(id, this);
+        }
+    }
+}
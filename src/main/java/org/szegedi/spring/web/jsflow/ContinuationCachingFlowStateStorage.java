@@ -0,0 +1,212 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import org.mozilla.javascript.NativeContinuation;
+import org.szegedi.spring.web.jsflow.support.FlowStateSerializer;
+
+/**
+ * <p>
+ * A flow state storage that keeps in-memory copies of just stored states in
+ * front of another flow state storage. When the next request resumes a flow
+ * from a state that is still cached, the state is taken from the cache
+ * instead of being retrieved and deserialized from the backing storage. A
+ * cached state can be taken only once; resuming the same state again
+ * retrieves it from the backing storage, so every resumption starts from a
+ * private copy of the state.
+ * </p>
+ * <p>
+ * The copies are taken when the state is stored, before the response is
+ * rendered, so the view can't modify them. States referencing objects that
+ * can't be copied in memory aren't cached. Objects stubbed by the stub
+ * provider of the backing storage (see
+ * {@link HttpSessionFlowStateStorage#bindStubProvider(HttpSession, FlowStateSerializer.StubProvider)})
+ * are shared with the copies, just as they would be resolved when the state
+ * is deserialized.
+ * </p>
+ * <p>
+ * The backing storage remains the authority on the states: every state is
+ * stored in it, flow ids are read from it, and purging a flow purges it from
+ * the backing storage as well as from the cache. The cache holds at most
+ * {@link #setMaxStates(int) a bounded number of states}, each for at most
+ * {@link #setTimeToLive(long) its time to live}, so a state the backing
+ * storage already discarded can only be resumed from the cache within that
+ * time.
+ * </p>
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class ContinuationCachingFlowStateStorage extends FlowStateSerializer implements FlowStateStorage {
+    private FlowStateStorage backingStorage;
+    private int maxStates = 100;
+    private long timeToLive = 60000;
+
+    private final Map<String, CachedContinuation> cache = new LinkedHashMap<>();
+
+    /**
+     * Sets the backing storage that states are stored in. Mandatory.
+     *
+     * @param backingStorage
+     */
+    public void setBackingStorage(final FlowStateStorage backingStorage) {
+        this.backingStorage = backingStorage;
+    }
+
+    /**
+     * Sets the maximum number of states cached in memory. Defaults to 100.
+     *
+     * @param maxStates
+     */
+    public void setMaxStates(final int maxStates) {
+        if (maxStates <= 0) {
+            throw new IllegalArgumentException("maxStates <= 0");
+        }
+        this.maxStates = maxStates;
+    }
+
+    /**
+     * Sets the time in milliseconds a state is kept in the cache after it was
+     * stored. Defaults to 60000.
+     *
+     * @param timeToLive
+     */
+    public void setTimeToLive(final long timeToLive) {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("timeToLive <= 0");
+        }
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (backingStorage == null) {
+            throw new IllegalArgumentException("backingStorage must be set");
+        }
+        if (getScriptStorage() == null && backingStorage instanceof FlowStateSerializer) {
+            final ScriptStorage scriptStorage = ((FlowStateSerializer) backingStorage).getScriptStorage();
+            if (scriptStorage != null) {
+                setScriptStorage(scriptStorage);
+            }
+        }
+        super.afterPropertiesSet();
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state) {
+        return storeState(request, state, null);
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state, final String flowId) {
+        final String id = backingStorage.storeState(request, state, flowId);
+        final NativeContinuation copy;
+        try {
+            copy = cloneContinuation(state, getStubProvider(request));
+        } catch (final Exception e) {
+            throw new FlowStateStorageException("Failed to cache state", e);
+        }
+        if (copy != null) {
+            final CachedContinuation cached = new CachedContinuation(copy, flowId);
+            final String key = getCacheKey(request, id);
+            synchronized (cache) {
+                cache.put(key, cached);
+                // Entries are in the order they were stored, so the expired
+                // ones are the eldest
+                for (final Iterator<CachedContinuation> it = cache.values().iterator(); it.hasNext();) {
+                    final CachedContinuation eldest = it.next();
+                    if (cache.size() <= maxStates && !eldest.isExpired(cached.created)) {
+                        break;
+                    }
+                    it.remove();
+                }
+            }
+        }
+        return id;
+    }
+
+    @Override
+    public NativeContinuation getState(final HttpServletRequest request, final String id) {
+        final CachedContinuation cached;
+        synchronized (cache) {
+            cached = cache.remove(getCacheKey(request, id));
+        }
+        if (cached != null && !cached.isExpired(System.currentTimeMillis())) {
+            return cached.continuation;
+        }
+        return backingStorage.getState(request, id);
+    }
+
+    @Override
+    public String getFlowId(final HttpServletRequest request, final String id) {
+        return backingStorage.getFlowId(request, id);
+    }
+
+    /**
+     * Discards the cached states of the flow, and purges the flow from the
+     * backing storage.
+     */
+    @Override
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        synchronized (cache) {
+            for (final Iterator<CachedContinuation> it = cache.values().iterator(); it.hasNext();) {
+                if (flowId.equals(it.next().flowId)) {
+                    it.remove();
+                }
+            }
+        }
+        backingStorage.purgeFlow(request, flowId);
+    }
+
+    /**
+     * Returns the stub provider of the backing storage, so the copies share
+     * the objects its serialized states would be reconnected with.
+     */
+    @Override
+    protected StubProvider getStubProvider(final HttpServletRequest request) {
+        if (backingStorage instanceof FlowStateSerializer) {
+            return getStubProvider((FlowStateSerializer) backingStorage, request);
+        }
+        return null;
+    }
+
+    private static String getCacheKey(final HttpServletRequest request, final String id) {
+        // State ids are only unique within a session in some storages
+        final HttpSession session = request.getSession(false);
+        return session == null ? id : session.getId() + ':' + id;
+    }
+
+    private class CachedContinuation {
+        final NativeContinuation continuation;
+        final String flowId;
+        final long created = System.currentTimeMillis();
+
+        CachedContinuation(final NativeContinuation continuation, final String flowId) {
+            this.continuation = continuation;
+            this.flowId = flowId;
+        }
+
+        boolean isExpired(final long now) {
+            return now - created > timeToLive;
+        }
+    }
+}
@@ -17,6 +17,8 @@ package org.szegedi.spring.web.jsflow;
 
 import java.io.FileNotFoundException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.security.SecureRandom;
+import java.util.Random;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.mozilla.javascript.Context;
@@ -52,7 +54,13 @@ import org.szegedi.spring.web.jsflow.support.ContextFactoryHolder;
  * encapsulate a single webflow represented by a single script, or it can handle
  * several flows represented by several scripts, depending on the script
  * selection strategy used. The operation of the controller can be cusomized by
- * installing various interceptors into it.
+ * installing various interceptors into it. All states of a single execution of
+ * a flow are stored with the same flow id, and when the flow completes, the
+ * controller asks the flow state storage to purge them. The flow id is not
+ * part of the flow's state, so that identical states of different flow
+ * executions serialize identically. It is recorded by the flow state storage
+ * alongside each state and read back from it when the state is resumed; it
+ * is never taken from the client.
  *
  * @author Attila Szegedi
  * @version $Id$
@@ -73,7 +81,9 @@ public class FlowController extends AbstractController implements InitializingBe
     private FlowStateStorage flowStateStorage;
     private FlowExecutionInterceptor flowExecutionInterceptor;
     private StateExecutionInterceptor stateExecutionInterceptor;
+    private MemoryPressureMonitor memoryPressureMonitor;
     private final ContextFactoryHolder contextFactoryHolder = new ContextFactoryHolder();
+    private final Random random = new SecureRandom();
 
     /**
      * Sets the flow state storage used to store flow states between a HTTP
@@ -199,6 +209,21 @@ public class FlowController extends AbstractController implements InitializingBe
         this.stateExecutionInterceptor = stateExecutionInterceptor;
     }
 
+    /**
+     * Sets the memory pressure monitor consulted before starting a new flow.
+     * While the monitor {@link MemoryPressureMonitor#isRejectingNewFlows()
+     * rejects new flows}, requests that would start one are answered with 503
+     * (Service Unavailable). If not set, the controller will attempt to look
+     * up an instance of it by type in the application context during
+     * initialization. If none is found, new flows are never rejected.
+     *
+     * @param memoryPressureMonitor
+     * @since 1.4
+     */
+    public void setMemoryPressureMonitor(final MemoryPressureMonitor memoryPressureMonitor) {
+        this.memoryPressureMonitor = memoryPressureMonitor;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         // Try to autodiscover a script storage, flow state storage, flow
@@ -223,6 +248,9 @@ public class FlowController extends AbstractController implements InitializingBe
             flowExecutionInterceptor = BeanFactoryUtilsEx.beanOfTypeIncludingAncestors(ctx,
                     FlowExecutionInterceptor.class);
         }
+        if (memoryPressureMonitor == null) {
+            memoryPressureMonitor = BeanFactoryUtilsEx.beanOfTypeIncludingAncestors(ctx, MemoryPressureMonitor.class);
+        }
         if (scriptSelectionStrategy == null) {
             final UrlScriptSelectionStrategy dss = new UrlScriptSelectionStrategy();
             dss.setUseServletPath(true);
@@ -380,7 +408,13 @@ public class FlowController extends AbstractController implements InitializingBe
     @Override
     protected ModelAndView handleRequestInternal(final HttpServletRequest request, final HttpServletResponse response)
             throws Exception {
-        final NativeContinuation continuation = getState(request);
+        final String stateId = request.getParameter(STATEID_KEY);
+        final NativeContinuation continuation = stateId == null ? null : flowStateStorage.getState(request, stateId);
+        final String flowId = continuation == null ? null : flowStateStorage.getFlowId(request, stateId);
+        if (continuation == null && memoryPressureMonitor != null && memoryPressureMonitor.isRejectingNewFlows()) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return null;
+        }
         final Context cx = Context.getCurrentContext();
         if (cx == null) {
             // No context - we're not running within
@@ -390,7 +424,7 @@ public class FlowController extends AbstractController implements InitializingBe
                 @Override
                 public Object run(final Context cx) {
                     try {
-                        return handleRequestInContext(request, response, continuation, cx);
+                        return handleRequestInContext(request, response, continuation, flowId, cx);
                     } catch (final ModelAndViewDefiningException e) {
                         return e.getModelAndView();
                     } catch (final RuntimeException e) {
@@ -404,19 +438,11 @@ public class FlowController extends AbstractController implements InitializingBe
         }
         // Have a context associated with the thread - we're probably
         // running within OpenContextInViewInterceptor. Just use it.
-        return handleRequestInContext(request, response, continuation, cx);
-    }
-
-    private NativeContinuation getState(final HttpServletRequest request) {
-        final String strId = request.getParameter(STATEID_KEY);
-        if (strId == null) {
-            return null;
-        }
-        return flowStateStorage.getState(request, strId);
+        return handleRequestInContext(request, response, continuation, flowId, cx);
     }
 
     private ModelAndView handleRequestInContext(final HttpServletRequest request, final HttpServletResponse response,
-            final NativeContinuation continuation, final Context cx) throws Exception {
+            final NativeContinuation continuation, final String continuedFlowId, final Context cx) throws Exception {
         final ScriptableObject scope;
         if (continuation == null) {
             scope = scriptStorage.createNewTopLevelScope(cx);
@@ -499,12 +525,14 @@ public class FlowController extends AbstractController implements InitializingBe
         deleteProperty(scope, RESPONSE_PROPERTY);
         deleteProperty(scope, REQUEST_PROPERTY);
         deleteProperty(scope, HOST_PROPERTY);
+        final String flowId = continuedFlowId == null ? Long.toHexString(random.nextLong()) : continuedFlowId;
         Object id;
         if (newContinuation != null) {
-            id = flowStateStorage.storeState(request, newContinuation);
+            id = flowStateStorage.storeState(request, newContinuation, flowId);
         } else {
             id = null;
             afterFlowExecution(request, cx, scope, null);
+            flowStateStorage.purgeFlow(request, flowId);
         }
         return hostObject.getModelAndView(id);
     }
@@ -51,4 +51,61 @@ public interface FlowStateStorage {
      * @return the flow state, or null if it couldn't be resolved
      */
     public NativeContinuation getState(HttpServletRequest request, String id);
+
+    /**
+     * Stores the state associated with the current request as part of a flow.
+     * All states of a single flow (a single execution of a flowscript) are
+     * stored with the same flow id, and can be discarded together with
+     * {@link #purgeFlow(HttpServletRequest, String)}. The default
+     * implementation ignores the flow id.
+     *
+     * @param request
+     *            the HTTP request
+     * @param state
+     *            the state
+     * @param flowId
+     *            the id of the flow the state belongs to. Can be null.
+     * @return an identifier for the state. The identifier is unique at least in
+     *         the scope of the current HTTP request's session.
+     * @since 1.4
+     */
+    public default String storeState(final HttpServletRequest request, final NativeContinuation state,
+            final String flowId) {
+        return storeState(request, state);
+    }
+
+    /**
+     * Discards all states of a flow. Invoked when the flow completes, as its
+     * states can no longer be meaningfully resumed. The default implementation
+     * does nothing, leaving the states to be discarded by the storage's usual
+     * expiry policy.
+     *
+     * @param request
+     *            the HTTP request in which the flow completed
+     * @param flowId
+     *            the id of the flow, as passed to
+     *            {@link #storeState(HttpServletRequest, NativeContinuation, String)}
+     * @since 1.4
+     */
+    public default void purgeFlow(final HttpServletRequest request, final String flowId) {
+    }
+
+    /**
+     * Returns the id of the flow a state was stored with. The flow id is
+     * recorded by the storage alongside the state, so that a client can only
+     * continue, and eventually purge, a flow it holds a state of. The default
+     * implementation returns null, in which case a resumed state starts a new
+     * flow.
+     *
+     * @param request
+     *            the HTTP request
+     * @param id
+     *            the unique identifier for the flow state
+     * @return the id of the flow the state belongs to, or null if it isn't
+     *         known
+     * @since 1.4
+     */
+    public default String getFlowId(final HttpServletRequest request, final String id) {
+        return null;
+    }
 }
\ No newline at end of file
@@ -17,19 +17,40 @@ package org.szegedi.spring.web.jsflow;
 
 import java.io.InvalidObjectException;
 import java.io.Serializable;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.mozilla.javascript.NativeContinuation;
+import org.springframework.beans.factory.DisposableBean;
+import org.szegedi.spring.web.jsflow.codec.BinaryStateCodec;
+import org.szegedi.spring.web.jsflow.support.ContentHashFlowStateIdGenerator;
+import org.szegedi.spring.web.jsflow.support.FlowAwareEvictionPolicy;
+import org.szegedi.spring.web.jsflow.support.InsertionOrderEvictionPolicy;
 import org.szegedi.spring.web.jsflow.support.FlowStateIdGenerator;
 import org.szegedi.spring.web.jsflow.support.FlowStateSerializer;
+import org.szegedi.spring.web.jsflow.support.LruEvictionPolicy;
+import org.szegedi.spring.web.jsflow.support.OverflowIndex;
+import org.szegedi.spring.web.jsflow.support.OverflowIndex.Overflow;
+import org.szegedi.spring.web.jsflow.support.OverflowWriter;
 import org.szegedi.spring.web.jsflow.support.RandomFlowStateIdGenerator;
+import org.szegedi.spring.web.jsflow.support.ReservableFlowStateStorage;
+import org.szegedi.spring.web.jsflow.support.SessionSweeper;
+import org.szegedi.spring.web.jsflow.support.SessionSweeper.SessionVisitor;
+import org.szegedi.spring.web.jsflow.support.StateBlobStore;
+import org.szegedi.spring.web.jsflow.support.StateEvictionPolicy;
+import org.szegedi.spring.web.jsflow.support.StateMap;
+import org.szegedi.spring.web.jsflow.support.StripedRandomFlowStateIdGenerator;
+import org.szegedi.spring.web.jsflow.support.TinyLfuEvictionPolicy;
 
 /**
  * An implementation for flow state storage that stores flow states in the
@@ -38,24 +59,103 @@ import org.szegedi.spring.web.jsflow.support.RandomFlowStateIdGenerator;
  * (requesting a state from a session it doesn't belong to won't work, and it is
  * also possible to have identical flowstate ids in two sessions without any
  * interference).
+ * <p>
+ * States are normally kept serialized, and deserialized on every retrieval.
+ * With {@link #setMaxLiveStates(int)}, the most recently stored (or, with an
+ * access-ordered eviction policy, the most recently used) states of a session
+ * are instead kept as deep copies made in memory, which are much cheaper to
+ * create than a serialization round trip. See
+ * {@link FlowStateSerializer#cloneContinuation(NativeContinuation, StubProvider)}.
+ * <p>
+ * By default, all states of a session are kept in a single session attribute.
+ * With {@link #setStatePerAttribute(boolean)}, every state is kept in its own
+ * session attribute instead, next to a small index attribute, which suits
+ * containers that replicate only the changed attributes of a session.
+ * <p>
+ * The serialized states can be encoded with a
+ * {@link #setBinaryStateCodec(BinaryStateCodec) binary state codec}, usually
+ * a {@link org.szegedi.spring.web.jsflow.codec.CompressionCodec}, to reduce
+ * the memory footprint and replication traffic of the sessions.
+ * <p>
+ * With {@link #setIdleTimeout(long)}, a low priority background thread
+ * compacts the states of sessions that have been idle for longer than the
+ * timeout: their live states are serialized, cached decoded states are
+ * dropped, their states are encoded with the
+ * {@link #setIdleStateCodec(BinaryStateCodec) idle state codec}, and all but
+ * the {@link #setIdleMaxStates(int) most recent states} are discarded. The
+ * sessions are visited a few at a time, and the states of each session are
+ * encoded without holding its lock.
+ * <p>
+ * With {@link #setStateTimeToLive(long)}, the same background thread also
+ * discards states that were stored longer ago than the time to live, so
+ * states of abandoned flows don't occupy memory until the session expires.
+ * The states are discarded without being deserialized.
+ * <p>
+ * A {@link MemoryPressureMonitor} can make the storage discard states from
+ * all sessions when the heap is nearly full, see
+ * {@link #shedStates(double)}.
+ * <p>
+ * With {@link #setOverflowStorage(ReservableFlowStateStorage)}, states
+ * discarded to keep a session within {@link #setMaxStates(int)} (or within
+ * {@link #setIdleMaxStates(int)} when it is idle) are moved to another
+ * storage, i.e. a {@link JdbcFlowStateStorage}. Their ids are reserved in the
+ * other storage when they are discarded, and their serialized forms are
+ * written to it by a background thread. A state not found in the session is
+ * then retrieved from the other storage, so the session can hold just the
+ * recent states while the user can still go back further.
  *
  * @author Attila Szegedi
  * @version $Id$
  */
-public class HttpSessionFlowStateStorage extends FlowStateSerializer implements FlowStateStorage {
+public class HttpSessionFlowStateStorage extends FlowStateSerializer implements FlowStateStorage, DisposableBean {
     private static final Log log = LogFactory.getLog(HttpSessionFlowStateStorage.class);
 
     private static final String STUB_PROVIDER_KEY = "provider#" + HttpSessionFlowStateStorage.class.getName();
     private static final String STUB_RESOLVER_KEY = "resolver#" + HttpSessionFlowStateStorage.class.getName();
     private static final String MAP_KEY = "map#" + HttpSessionFlowStateStorage.class.getName();
+    private static final String INDEX_KEY = "index#" + HttpSessionFlowStateStorage.class.getName();
+    private static final String STATE_KEY_PREFIX = "state#" + HttpSessionFlowStateStorage.class.getName() + "#";
+    private static final String OVERFLOW_KEY = "overflow#" + HttpSessionFlowStateStorage.class.getName();
+    private static final int SESSION_LOCKS = 64;
 
     private int maxStates = 100;
+    private int maxStatesPerFlow;
+    private int maxLiveStates;
+    private boolean statePerAttribute;
+    private StateBlobStore blobStore;
+    private BinaryStateCodec binaryStateCodec;
+    private boolean lazyEncoding;
+    private long idleTimeout;
+    private long stateTimeToLive;
+    private int idleMaxStates;
+    private BinaryStateCodec idleStateCodec;
+    private long sweepInterval = 10000;
+    private int sweepBatchSize = 100;
+    private ReservableFlowStateStorage overflowStorage;
+    private int maxOverflowStates = 1000;
+    private int maxPendingOverflows = 1000;
+    private StateEvictionPolicy evictionPolicy = new InsertionOrderEvictionPolicy();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong compactionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
     private FlowStateIdGenerator flowStateIdGenerator;
+    private final Object[] sessionLocks = new Object[SESSION_LOCKS];
+    private final SessionSweeper sessionSweeper = new SessionSweeper();
+    private OverflowWriter overflowWriter;
+    private volatile boolean trackingSessions;
+
+    public HttpSessionFlowStateStorage() {
+        for (int i = 0; i < SESSION_LOCKS; ++i) {
+            sessionLocks[i] = new Object();
+        }
+    }
 
     /**
      * Sets the maximum number of states per HTTP session that this manager will
-     * store. If the number is exceeded, the least recently used state will be
-     * discareded. Defaults to 100.
+     * store. If the number is exceeded, a state chosen by the eviction policy
+     * will be discarded. Defaults to 100.
      *
      * @param maxStates
      */
@@ -67,8 +167,332 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
     }
 
     /**
-     * Sets a source of randomness for generating state IDs. If not explicitly
-     * set, it will create and use a private instance of {@link SecureRandom}.
+     * Sets the maximum number of states of a single flow that this manager
+     * will store. If the number is exceeded, the oldest state of the flow will
+     * be discarded, limiting how far the user can go back in the flow's
+     * history. Defaults to 0, meaning flows are only limited by
+     * {@link #setMaxStates(int)}.
+     *
+     * @param maxStatesPerFlow
+     * @since 1.4
+     */
+    public void setMaxStatesPerFlow(final int maxStatesPerFlow) {
+        if (maxStatesPerFlow < 0) {
+            throw new IllegalArgumentException("maxStatesPerFlow < 0");
+        }
+        this.maxStatesPerFlow = maxStatesPerFlow;
+    }
+
+    /**
+     * Sets the maximum number of states per HTTP session kept as live copies
+     * of the continuations instead of in serialized form. Storing and
+     * retrieving a live state copies the continuation in memory, which is
+     * considerably faster than serializing and deserializing it. When a
+     * session holds more live states, the least recent ones are serialized.
+     * States referencing objects that can't be copied in memory are always
+     * serialized. All live states of a session are serialized when the session
+     * itself is serialized (i.e. when it is passivated or replicated by the
+     * servlet container). Live states are not shared with Terracotta, so
+     * don't use them in a Terracotta cluster. Defaults to 0, meaning all
+     * states are serialized.
+     *
+     * @param maxLiveStates
+     * @since 1.4
+     */
+    public void setMaxLiveStates(final int maxLiveStates) {
+        if (maxLiveStates < 0) {
+            throw new IllegalArgumentException("maxLiveStates < 0");
+        }
+        this.maxLiveStates = maxLiveStates;
+    }
+
+    /**
+     * Sets whether every state is kept in its own session attribute. By
+     * default, all states of a session are kept in a single attribute, which
+     * a replicating servlet container has to send to the other nodes as a
+     * whole whenever a state is stored. When set to true, each state is kept
+     * in a separate attribute that is set once, and the states are tracked in
+     * an index attribute holding only their ids, flow ids and order, so only
+     * the new state and the small index need to be replicated. The index
+     * attribute is set again whenever it changes. Live states (see
+     * {@link #setMaxLiveStates(int)}) are not used in this mode. Defaults to
+     * false. Changing it discards the states of existing sessions.
+     *
+     * @param statePerAttribute
+     * @since 1.4
+     */
+    public void setStatePerAttribute(final boolean statePerAttribute) {
+        this.statePerAttribute = statePerAttribute;
+    }
+
+    /**
+     * Sets a codec used to encode the serialized states kept in the sessions,
+     * i.e. a {@link org.szegedi.spring.web.jsflow.codec.CompressionCodec}. The
+     * decoded form of the latest state of every flow is cached in memory (but
+     * not replicated), so continuing a flow from its latest state doesn't
+     * need to decode it. If not set, serialized states are kept unencoded.
+     *
+     * @param binaryStateCodec
+     * @since 1.4
+     */
+    public void setBinaryStateCodec(final BinaryStateCodec binaryStateCodec) {
+        this.binaryStateCodec = binaryStateCodec;
+    }
+
+    /**
+     * Sets whether the latest state of every flow is kept unencoded, and only
+     * encoded when a newer state of the flow is stored. This saves encoding
+     * states that are never followed by another one, i.e. when a flow
+     * completes, at the cost of keeping the latest states unencoded in the
+     * replicated session. Has no effect if no binary state codec is set, or
+     * when states are kept in separate session attributes. Defaults to false.
+     *
+     * @param lazyEncoding
+     * @since 1.4
+     */
+    public void setLazyEncoding(final boolean lazyEncoding) {
+        this.lazyEncoding = lazyEncoding;
+    }
+
+    /**
+     * Sets the time after which the states of an idle session are compacted.
+     * A session is idle if no request accessed it within this time. It should
+     * be considerably shorter than the session timeout of the servlet
+     * container, or the sessions will rarely become idle for long enough
+     * before they expire. Defaults to 0, meaning states of idle sessions are
+     * not compacted.
+     *
+     * @param idleTimeout
+     *            the idle time in milliseconds.
+     * @since 1.4
+     */
+    public void setIdleTimeout(final long idleTimeout) {
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException("idleTimeout < 0");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Sets the maximum number of states kept in a session once it becomes
+     * idle. Older states are discarded; the user can still continue from the
+     * latest pages, but can't go back further. Defaults to 0, meaning idle
+     * sessions keep all their states.
+     *
+     * @param idleMaxStates
+     * @since 1.4
+     */
+    public void setIdleMaxStates(final int idleMaxStates) {
+        if (idleMaxStates < 0) {
+            throw new IllegalArgumentException("idleMaxStates < 0");
+        }
+        this.idleMaxStates = idleMaxStates;
+    }
+
+    /**
+     * Sets the codec used to encode the states of idle sessions, typically a
+     * {@link org.szegedi.spring.web.jsflow.codec.CompressionCodec} with the
+     * best compression level. Its output must be decodable by the
+     * {@link #setBinaryStateCodec(BinaryStateCodec) binary state codec},
+     * which is the case with compression codecs of different levels. If not
+     * set, only the unencoded states of idle sessions are encoded, with the
+     * binary state codec. Requires a binary state codec. Has no effect when
+     * states are kept in separate session attributes, as encoding them again
+     * would replicate them again.
+     *
+     * @param idleStateCodec
+     * @since 1.4
+     */
+    public void setIdleStateCodec(final BinaryStateCodec idleStateCodec) {
+        this.idleStateCodec = idleStateCodec;
+    }
+
+    /**
+     * Sets the time after which a stored state is discarded, regardless of
+     * whether its session is in use. Expired states are discarded by a
+     * background thread, so they may remain retrievable for a while after
+     * they expired (see {@link #setSweepInterval(long)}). Storing a state
+     * identical to an already stored one (see
+     * {@link ContentHashFlowStateIdGenerator}) renews it. Defaults to 0,
+     * meaning states don't expire.
+     *
+     * @param stateTimeToLive
+     *            the time to live in milliseconds.
+     * @since 1.4
+     */
+    public void setStateTimeToLive(final long stateTimeToLive) {
+        if (stateTimeToLive < 0) {
+            throw new IllegalArgumentException("stateTimeToLive < 0");
+        }
+        this.stateTimeToLive = stateTimeToLive;
+    }
+
+    /**
+     * Sets the delay between two visits of the background thread looking for
+     * idle sessions and expired states. Defaults to 10000 milliseconds.
+     *
+     * @param sweepInterval
+     *            the delay in milliseconds.
+     * @since 1.4
+     */
+    public void setSweepInterval(final long sweepInterval) {
+        if (sweepInterval <= 0) {
+            throw new IllegalArgumentException("sweepInterval <= 0");
+        }
+        this.sweepInterval = sweepInterval;
+    }
+
+    /**
+     * Sets the number of sessions checked for idleness and expired states in a
+     * single visit of the background thread. The next visit continues with the following
+     * sessions. Defaults to 100.
+     *
+     * @param sweepBatchSize
+     * @since 1.4
+     */
+    public void setSweepBatchSize(final int sweepBatchSize) {
+        if (sweepBatchSize <= 0) {
+            throw new IllegalArgumentException("sweepBatchSize <= 0");
+        }
+        this.sweepBatchSize = sweepBatchSize;
+    }
+
+    /**
+     * Sets a storage that states discarded from the sessions are moved to. It
+     * must be able to reserve ids, i.e. a {@link JdbcFlowStateStorage} with a
+     * flow state id generator; if it can't, discarded states are lost. The
+     * states are written to it in serialized form by a background thread,
+     * without a request, serialized by this storage and encoded with its
+     * binary state codec, so the overflow storage's own codec is bypassed.
+     * States of a flow that completed are purged from it too. States
+     * discarded to keep a flow within {@link #setMaxStatesPerFlow(int)} are
+     * not moved. If not set, discarded states are lost.
+     *
+     * @param overflowStorage
+     * @since 1.4
+     */
+    public void setOverflowStorage(final ReservableFlowStateStorage overflowStorage) {
+        this.overflowStorage = overflowStorage;
+    }
+
+    /**
+     * Sets the maximum number of states per HTTP session that are remembered
+     * to have been moved to the overflow storage. Of the moved states, only
+     * the most recent ones can be retrieved. Defaults to 1000.
+     *
+     * @param maxOverflowStates
+     * @since 1.4
+     */
+    public void setMaxOverflowStates(final int maxOverflowStates) {
+        if (maxOverflowStates <= 0) {
+            throw new IllegalArgumentException("maxOverflowStates <= 0");
+        }
+        this.maxOverflowStates = maxOverflowStates;
+    }
+
+    /**
+     * Sets the maximum number of discarded states queued for writing to the
+     * overflow storage. When the queue is full, the thread discarding a state
+     * writes it itself. Defaults to 1000.
+     *
+     * @param maxPendingOverflows
+     * @since 1.4
+     */
+    public void setMaxPendingOverflows(final int maxPendingOverflows) {
+        if (maxPendingOverflows <= 0) {
+            throw new IllegalArgumentException("maxPendingOverflows <= 0");
+        }
+        this.maxPendingOverflows = maxPendingOverflows;
+    }
+
+    /**
+     * Sets a store through which identical serialized states are shared
+     * between sessions, and between all other storages using the same store.
+     * If not set, every stored state is kept in its own copy.
+     *
+     * @param blobStore
+     * @since 1.4
+     */
+    public void setBlobStore(final StateBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Sets the policy choosing the state to discard when a session holds more
+     * than the maximum number of states. Defaults to an
+     * {@link InsertionOrderEvictionPolicy}, which discards the oldest state.
+     * A {@link FlowAwareEvictionPolicy} can be set to prefer discarding the
+     * earlier states of flows that still have later ones. Note that with a
+     * policy that orders the
+     * states by their last access (i.e. a {@link LruEvictionPolicy} or a
+     * {@link TinyLfuEvictionPolicy}), retrieving a state modifies the state
+     * map in the session.
+     *
+     * @param evictionPolicy
+     * @since 1.4
+     */
+    public void setEvictionPolicy(final StateEvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Returns the number of states retrieved since this storage was created.
+     *
+     * @return the number of states retrieved.
+     * @since 1.4
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of requested states that were not found (i.e.
+     * because they were discarded) since this storage was created.
+     *
+     * @return the number of requested states not found.
+     * @since 1.4
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of states discarded to enforce the state limits
+     * since this storage was created.
+     *
+     * @return the number of discarded states.
+     * @since 1.4
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of idle sessions whose states were compacted since
+     * this storage was created.
+     *
+     * @return the number of compacted idle sessions.
+     * @since 1.4
+     */
+    public long getCompactionCount() {
+        return compactionCount.get();
+    }
+
+    /**
+     * Returns the number of states discarded because they expired since this
+     * storage was created.
+     *
+     * @return the number of expired states.
+     * @since 1.4
+     */
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    /**
+     * Sets a source of randomness for generating state IDs. If neither it nor
+     * a flow state id generator is set, a
+     * {@link StripedRandomFlowStateIdGenerator} is used.
      *
      * @param random
      * @deprecated use {@link #setFlowStateIdGenerator(FlowStateIdGenerator)}
@@ -85,6 +509,18 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
         flowStateIdGenerator = idGen;
     }
 
+    /**
+     * Sets the generator of state IDs. Defaults to a
+     * {@link StripedRandomFlowStateIdGenerator}. With a
+     * {@link ContentHashFlowStateIdGenerator}, the ids are derived from the
+     * serialized states, and a state identical to an already stored one is
+     * not stored again; the stored one becomes the newest state instead. A
+     * state stored by several flows is reference counted for each of them,
+     * and is only discarded once none of them references it any more. Live
+     * states (see {@link #setMaxLiveStates(int)}) are not used with it.
+     *
+     * @param flowStateIdGenerator
+     */
     public void setFlowStateIdGenerator(final FlowStateIdGenerator flowStateIdGenerator) {
         this.flowStateIdGenerator = flowStateIdGenerator;
     }
@@ -93,7 +529,250 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
     public void afterPropertiesSet() throws Exception {
         super.afterPropertiesSet();
         if (flowStateIdGenerator == null) {
-            setRandom(new SecureRandom());
+            flowStateIdGenerator = new StripedRandomFlowStateIdGenerator();
+        }
+        if (idleStateCodec != null && binaryStateCodec == null) {
+            throw new IllegalArgumentException("idleStateCodec requires a binaryStateCodec");
+        }
+        if (overflowStorage != null) {
+            overflowWriter = new OverflowWriter(overflowStorage, binaryStateCodec, maxPendingOverflows,
+                    "HttpSessionFlowStateStorage overflow writer");
+        }
+        if (idleTimeout > 0 || stateTimeToLive > 0) {
+            trackingSessions = true;
+            sessionSweeper.start(sweepInterval, sweepBatchSize, new SessionVisitor() {
+                @Override
+                public boolean visit(final StateMap stateMap, final HttpSession session) {
+                    return sweepSession(stateMap, session);
+                }
+            }, "HttpSessionFlowStateStorage sweeper");
+        }
+    }
+
+    /**
+     * Stops the background thread sweeping the sessions, and waits for the
+     * pending writes to the overflow storage to complete.
+     */
+    @Override
+    public void destroy() throws Exception {
+        sessionSweeper.stop(sweepInterval);
+        if (overflowWriter != null) {
+            overflowWriter.shutdown();
+        }
+    }
+
+    /**
+     * Discards the expired states of a known session, and compacts it if it
+     * is idle. Only ever invoked from the sweeper thread.
+     */
+    private boolean sweepSession(final StateMap stateMap, final HttpSession session) {
+        if (session.getAttribute(getMapKey()) != stateMap) {
+            return false;
+        }
+        if (stateTimeToLive > 0) {
+            expireStates(stateMap, session);
+        }
+        if (idleTimeout > 0 && session.getLastAccessedTime() < System.currentTimeMillis() - idleTimeout) {
+            compactIdleSession(stateMap, session);
+        }
+        return true;
+    }
+
+    /**
+     * Makes the storage keep track of the sessions it stores states in, as
+     * it does when it has a background thread sweeping them, so that
+     * {@link #shedStates(double)} can reach them.
+     */
+    void trackSessions() {
+        trackingSessions = true;
+    }
+
+    /**
+     * Discards states from all sessions to relieve memory pressure. The live
+     * states of every session are serialized, the cached decoded states are
+     * dropped, and the specified fraction of the states of every session are
+     * discarded (or moved to the overflow storage, if one is set). States
+     * that are not the latest state of their flow are discarded first, as the
+     * users can still continue their flows from the latest ones, then older
+     * states before more recent ones, and larger states before smaller ones.
+     * Only reaches sessions tracked by this storage, that is, sessions it
+     * stored a state in or retrieved a state from since it has been sweeping
+     * sessions (see {@link #setIdleTimeout(long)} and
+     * {@link #setStateTimeToLive(long)}) or since a
+     * {@link MemoryPressureMonitor} was attached to it. Usually invoked by
+     * the monitor, but can also be invoked directly, e.g. through JMX.
+     *
+     * @param fraction
+     *            the fraction of the states to discard from each session,
+     *            greater than 0 and at most 1.
+     * @return the number of discarded states.
+     * @since 1.4
+     */
+    public int shedStates(final double fraction) {
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("fraction not in (0, 1]");
+        }
+        final int[] count = new int[1];
+        sessionSweeper.visitAll(new SessionVisitor() {
+            @Override
+            public boolean visit(final StateMap stateMap, final HttpSession session) {
+                if (session.getAttribute(getMapKey()) != stateMap) {
+                    return false;
+                }
+                count[0] += shedStates(stateMap, session, fraction);
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    private int shedStates(final StateMap stateMap, final HttpSession session, final double fraction) {
+        List<Overflow> overflows = null;
+        final int count;
+        final Lock writeLock = stateMap.getLock().writeLock();
+        writeLock.lock();
+        try {
+            stateMap.serializeLiveStates(0);
+            stateMap.dropDecodedStates();
+            count = (int) Math.ceil(stateMap.size() * fraction);
+            if (count > 0) {
+                final List<StateMap.Entry> states = stateMap.getEntries();
+                Collections.sort(states, getSheddingOrder(stateMap));
+                for (int i = 0; i < count; ++i) {
+                    overflows = evictState(null, stateMap, states.get(i).getSlot(), session, overflows);
+                }
+                if (statePerAttribute) {
+                    session.setAttribute(INDEX_KEY, stateMap);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (overflows != null) {
+            writeOverflows(overflows, session, false);
+        }
+        return count;
+    }
+
+    /**
+     * Orders the states of a map from the first to shed to the last: states
+     * other than the latest of their flow first, then by their age from the
+     * oldest, then by their size from the largest.
+     */
+    private static Comparator<StateMap.Entry> getSheddingOrder(final StateMap stateMap) {
+        final Map<String, Integer> latestSlots = new HashMap<>();
+        for (int slot = stateMap.first(); slot != StateMap.NIL; slot = stateMap.next(slot)) {
+            final Integer latest = latestSlots.get(stateMap.getFlowId(slot));
+            if (latest == null || stateMap.getTimestamp(slot) >= stateMap.getTimestamp(latest.intValue())) {
+                latestSlots.put(stateMap.getFlowId(slot), Integer.valueOf(slot));
+            }
+        }
+        return new Comparator<StateMap.Entry>() {
+            @Override
+            public int compare(final StateMap.Entry e1, final StateMap.Entry e2) {
+                final boolean latest1 = latestSlots.get(e1.getFlowId()).intValue() == e1.getSlot();
+                final boolean latest2 = latestSlots.get(e2.getFlowId()).intValue() == e2.getSlot();
+                if (latest1 != latest2) {
+                    return latest1 ? 1 : -1;
+                }
+                final int byAge = Long.compare(stateMap.getTimestamp(e1.getSlot()), stateMap.getTimestamp(e2
+                        .getSlot()));
+                if (byAge != 0) {
+                    return byAge;
+                }
+                return Integer.compare(getSize(e2), getSize(e1));
+            }
+        };
+    }
+
+    private static int getSize(final StateMap.Entry entry) {
+        return entry.getState() == null ? 0 : entry.getState().length;
+    }
+
+    /**
+     * Discards the states of a session that were stored longer ago than the
+     * state time to live. The map is only locked for writing if it has any.
+     */
+    private void expireStates(final StateMap stateMap, final HttpSession session) {
+        final long storedBefore = System.currentTimeMillis() - stateTimeToLive;
+        final Lock readLock = stateMap.getLock().readLock();
+        readLock.lock();
+        try {
+            if (!stateMap.hasStatesStoredBefore(storedBefore)) {
+                return;
+            }
+        } finally {
+            readLock.unlock();
+        }
+        final Lock writeLock = stateMap.getLock().writeLock();
+        writeLock.lock();
+        try {
+            final int size = stateMap.size();
+            for (int slot = stateMap.first(); slot != StateMap.NIL;) {
+                final int next = stateMap.next(slot);
+                if (stateMap.getTimestamp(slot) < storedBefore) {
+                    removeState(stateMap, slot, session);
+                    expirationCount.incrementAndGet();
+                }
+                slot = next;
+            }
+            if (statePerAttribute && stateMap.size() != size) {
+                session.setAttribute(INDEX_KEY, stateMap);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Compacts the states of an idle session, unless they were already
+     * compacted and no state was stored since.
+     */
+    private void compactIdleSession(final StateMap stateMap, final HttpSession session) {
+        final List<StateMap.Entry> states;
+        List<Overflow> overflows = null;
+        final Lock writeLock = stateMap.getLock().writeLock();
+        writeLock.lock();
+        try {
+            if (stateMap.isCompacted()) {
+                return;
+            }
+            if (idleMaxStates > 0 && stateMap.size() > idleMaxStates) {
+                while (stateMap.size() > idleMaxStates) {
+                    overflows = evictState(null, stateMap, stateMap.first(), session, overflows);
+                }
+                if (statePerAttribute) {
+                    session.setAttribute(INDEX_KEY, stateMap);
+                }
+            }
+            stateMap.serializeLiveStates(0);
+            states = stateMap.compact(binaryStateCodec != null && !statePerAttribute, idleStateCodec != null);
+        } finally {
+            writeLock.unlock();
+        }
+        compactionCount.incrementAndGet();
+        if (overflows != null) {
+            writeOverflows(overflows, session, false);
+        }
+        if (states == null) {
+            return;
+        }
+        final BinaryStateCodec codec = idleStateCodec != null ? idleStateCodec : binaryStateCodec;
+        for (final StateMap.Entry state: states) {
+            final byte[] encoded;
+            try {
+                encoded = intern(codec.createEncoder().code(state.isEncoded() ? decode(state.getState()) : state
+                        .getState()));
+            } catch (final Exception e) {
+                log.warn("Failed to compact state " + Long.toHexString(state.getKey()), e);
+                continue;
+            }
+            writeLock.lock();
+            try {
+                stateMap.replaceWithEncoded(state, encoded);
+            } finally {
+                writeLock.unlock();
+            }
         }
     }
 
@@ -127,60 +806,417 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
         session.setAttribute(STUB_RESOLVER_KEY, resolver);
     }
 
+    @Override
+    protected StubProvider getStubProvider(final HttpServletRequest request) {
+        final HttpSession session = request.getSession(false);
+        return session == null ? null : (StubProvider) session.getAttribute(STUB_PROVIDER_KEY);
+    }
+
     @Override
     public String storeState(final HttpServletRequest request, final NativeContinuation state) {
-        Long id;
-        final Map<Long, LocallySerializedContinuation> stateMap = getStateMap(request, true);
-        byte[] serialized;
-        // Must serialize the continuation so it is deep-copied. If we
-        // didn't do this, we couldn't keep multiple independent states.
+        return storeState(request, state, null);
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state, final String flowId) {
+        final StubProvider stubProvider = (StubProvider) request.getSession().getAttribute(STUB_PROVIDER_KEY);
+        NativeContinuation live = null;
+        byte[] serialized = null;
+        // Must copy the continuation, either in memory or by serializing it.
+        // If we didn't do this, we couldn't keep multiple independent states.
         final Map<Object, Object> stubsToFunctions = new HashMap<>();
         try {
-            serialized = serializeContinuation(state, stubsToFunctions,
-                    (StubProvider) request.getSession().getAttribute(STUB_PROVIDER_KEY));
+            if (maxLiveStates > 0 && !statePerAttribute
+                    && !(flowStateIdGenerator instanceof ContentHashFlowStateIdGenerator)) {
+                live = cloneContinuation(state, stubProvider);
+            }
+            if (live == null) {
+                serialized = serializeContinuation(state, stubsToFunctions, stubProvider);
+            }
         } catch (final RuntimeException e) {
             throw e;
         } catch (final Exception e) {
             throw new FlowStateStorageException("Failed to store state", e);
         }
-        synchronized (stateMap) {
-            for (;;) {
-                id = flowStateIdGenerator.generateStateId(state);
-                if (id.longValue() < 0) {
-                    throw new RuntimeException("Got negative id");
+        return storeState(request, state, live, serialized, stubsToFunctions, flowId);
+    }
+
+    /**
+     * Stores a state already serialized by the caller without a stub
+     * provider, so it needn't be serialized again.
+     *
+     * @param request
+     *            the HTTP request
+     * @param state
+     *            the state
+     * @param serialized
+     *            the unencoded serialized form of the state
+     * @param stubsToFunctions
+     *            the stubbed functions of the serialized form
+     * @param flowId
+     *            the id of the flow the state belongs to. Can be null.
+     * @return an identifier for the state
+     */
+    String storeSerializedState(final HttpServletRequest request, final NativeContinuation state,
+            final byte[] serialized, final Map<Object, Object> stubsToFunctions, final String flowId) {
+        return storeState(request, state, null, serialized, stubsToFunctions, flowId);
+    }
+
+    private String storeState(final HttpServletRequest request, final NativeContinuation state,
+            final NativeContinuation live, final byte[] serialized, final Map<Object, Object> stubsToFunctions,
+            final String flowId) {
+        long id;
+        final StateMap stateMap = getStateMap(request, true);
+        final HttpSession session = request.getSession();
+        final StubProvider stubProvider = (StubProvider) session.getAttribute(STUB_PROVIDER_KEY);
+        ContentHashFlowStateIdGenerator contentHash = null;
+        if (flowStateIdGenerator instanceof ContentHashFlowStateIdGenerator) {
+            contentHash = (ContentHashFlowStateIdGenerator) flowStateIdGenerator;
+        }
+        final boolean encodeNow = binaryStateCodec != null && (statePerAttribute || !lazyEncoding);
+        final byte[] stored;
+        try {
+            stored = serialized == null ? null : intern(encodeNow ? encode(serialized) : serialized);
+        } catch (final Exception e) {
+            throw new FlowStateStorageException("Failed to store state", e);
+        }
+        List<StateMap.Entry> encodedLater = null;
+        List<Overflow> overflows = null;
+        final Lock writeLock = stateMap.getLock().writeLock();
+        for (;;) {
+            // Generate outside of the lock, so concurrent stores don't wait
+            // for each other's generators
+            id = contentHash != null ? contentHash.generateLongStateId(serialized) : flowStateIdGenerator
+                    .generateLongStateId(state);
+            if (id < 0) {
+                throw new RuntimeException("Got negative id");
+            }
+            writeLock.lock();
+            try {
+                if (contentHash != null) {
+                    final int slot = stateMap.find(id);
+                    if (slot != StateMap.NIL) {
+                        // An identical state is already stored; reference it
+                        // from the flow and keep it as the newest state
+                        // instead of storing a copy
+                        stateMap.addReference(slot, flowId);
+                        stateMap.moveToEnd(slot);
+                        stateMap.renew(slot);
+                        overflows = evictStates(request, stateMap, flowId, session);
+                        if (statePerAttribute) {
+                            session.setAttribute(INDEX_KEY, stateMap);
+                        }
+                        break;
+                    }
                 }
-                if (flowStateIdGenerator.dependsOnContinuation() || !stateMap.containsKey(id)) {
-                    stateMap.put(id, new LocallySerializedContinuation(serialized, stubsToFunctions));
-                    // NOTE: this works because stateMap is a LinkedHashMap.
-                    // Ordinarily, we'd subclass it and override
-                    // removeEldestEntry(). Unfortunately, subclassing
-                    // logically managed classes and overriding their protected
-                    // methods is disallowed in Terracotta
-                    while (stateMap.size() > maxStates) {
-                        stateMap.entrySet().iterator().remove();
+                if (flowStateIdGenerator.dependsOnContinuation() || stateMap.find(id) == StateMap.NIL) {
+                    if (statePerAttribute) {
+                        session.setAttribute(getStateKey(id), new StateAttribute(stored, encodeNow,
+                                stubsToFunctions));
+                        stateMap.put(id, null, null, flowId, null);
+                    } else {
+                        final int slot = stateMap.put(id, stored, stubsToFunctions, flowId, live);
+                        if (binaryStateCodec != null) {
+                            encodedLater = stateMap.setLatestState(slot, encodeNow, serialized);
+                        }
+                    }
+                    overflows = evictStates(request, stateMap, flowId, session);
+                    if (live != null) {
+                        stateMap.setLiveStateSerializer(getLiveStateSerializer(stubProvider));
+                        stateMap.serializeLiveStates(maxLiveStates);
+                    }
+                    if (statePerAttribute) {
+                        // Mark the index as changed for replication
+                        session.setAttribute(INDEX_KEY, stateMap);
                     }
                     break;
                 }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        if (encodedLater != null) {
+            encodeStates(stateMap, encodedLater);
+        }
+        if (overflows != null) {
+            writeOverflows(overflows, session, true);
+        }
+        return Long.toHexString(id);
+    }
+
+    /**
+     * Encodes the states that are no longer the latest of their flows, and
+     * replaces them in the map unless they changed in the meantime.
+     */
+    private void encodeStates(final StateMap stateMap, final List<StateMap.Entry> states) {
+        final Lock writeLock = stateMap.getLock().writeLock();
+        for (final StateMap.Entry state: states) {
+            final byte[] encoded;
+            try {
+                encoded = intern(encode(state.getState()));
+            } catch (final Exception e) {
+                log.warn("Failed to encode state " + Long.toHexString(state.getKey()), e);
+                continue;
+            }
+            writeLock.lock();
+            try {
+                stateMap.replaceWithEncoded(state, encoded);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private StateMap.LiveStateSerializer getLiveStateSerializer(final StubProvider stubProvider) {
+        return new StateMap.LiveStateSerializer() {
+            @Override
+            public byte[] serialize(final NativeContinuation live, final Map<Object, Object> stubsToFunctions)
+                    throws Exception {
+                final byte[] serialized = serializeContinuation(live, stubsToFunctions, stubProvider);
+                return intern(binaryStateCodec != null ? encode(serialized) : serialized);
+            }
+
+            @Override
+            public boolean isEncoding() {
+                return binaryStateCodec != null;
+            }
+        };
+    }
+
+    private byte[] intern(final byte[] serialized) {
+        return blobStore == null ? serialized : blobStore.intern(serialized);
+    }
+
+    private byte[] encode(final byte[] serialized) throws Exception {
+        return binaryStateCodec.createEncoder().code(serialized);
+    }
+
+    private byte[] decode(final byte[] encoded) throws Exception {
+        return binaryStateCodec.createDecoder().code(encoded);
+    }
+
+    /**
+     * Enforces the state limits after a state of a flow was stored. Returns
+     * the discarded states to move to the overflow storage, or null if there
+     * are none.
+     */
+    private List<Overflow> evictStates(final HttpServletRequest request, final StateMap stateMap,
+            final String flowId, final HttpSession session) {
+        if (maxStatesPerFlow > 0) {
+            // A state shared with other flows only loses the references of
+            // this flow, and is discarded once no flow references it
+            int count = 0;
+            for (int slot = stateMap.first(); slot != StateMap.NIL; slot = stateMap.next(slot)) {
+                count += stateMap.getReferenceCount(slot, flowId);
+            }
+            for (int slot = stateMap.first(); count > maxStatesPerFlow;) {
+                final int next = stateMap.next(slot);
+                final int dropped = Math.min(stateMap.getReferenceCount(slot, flowId), count - maxStatesPerFlow);
+                if (stateMap.removeReferences(slot, flowId, dropped)) {
+                    removeState(stateMap, slot, session);
+                    evictionCount.incrementAndGet();
+                }
+                count -= dropped;
+                slot = next;
             }
         }
-        return Long.toHexString(id.longValue());
+        if (stateMap.size() <= maxStates) {
+            return null;
+        }
+        final List<StateMap.Entry> states = stateMap.getEntries();
+        List<Overflow> overflows = null;
+        while (states.size() > maxStates) {
+            final int slot = states.remove(evictionPolicy.selectEvictedState(states)).getSlot();
+            overflows = evictState(request, stateMap, slot, session, overflows);
+        }
+        return overflows;
+    }
+
+    /**
+     * Discards a state to enforce a state limit. If there is an overflow
+     * storage, the id of the state is reserved in it and recorded in the
+     * session's overflow index, and the state is added to the list of states
+     * to write to the overflow storage, which is returned. A live state is
+     * serialized first.
+     */
+    private List<Overflow> evictState(final HttpServletRequest request, final StateMap stateMap, final int slot,
+            final HttpSession session, final List<Overflow> overflows) {
+        List<Overflow> result = overflows;
+        final OverflowIndex index = overflowWriter == null ? null : (OverflowIndex) session
+                .getAttribute(OVERFLOW_KEY);
+        if (index != null) {
+            final long key = stateMap.getKey(slot);
+            Overflow overflow = null;
+            try {
+                if (statePerAttribute) {
+                    final StateAttribute attribute = (StateAttribute) session.getAttribute(getStateKey(key));
+                    if (attribute != null) {
+                        overflow = overflowWriter.reserve(request, key, attribute.state, attribute.encoded,
+                                attribute.stubsToFunctions, stateMap.getFlowId(slot));
+                    }
+                } else {
+                    final NativeContinuation live = stateMap.getLiveState(slot);
+                    if (live != null) {
+                        final Map<Object, Object> stubsToFunctions = new HashMap<>();
+                        overflow = overflowWriter.reserve(request, key, serializeContinuation(live,
+                                stubsToFunctions, (StubProvider) session.getAttribute(STUB_PROVIDER_KEY)), false,
+                                stubsToFunctions, stateMap.getFlowId(slot));
+                    } else {
+                        final byte[] decoded = stateMap.getDecodedState(slot);
+                        overflow = overflowWriter.reserve(request, key, decoded != null ? decoded : stateMap
+                                .getState(slot), decoded == null, stateMap.getStubsToFunctions(slot), stateMap
+                                .getFlowId(slot));
+                    }
+                }
+            } catch (final Exception e) {
+                log.warn("Failed to move state " + Long.toHexString(key) + " to the overflow storage", e);
+            }
+            if (overflow != null) {
+                index.add(overflow, maxOverflowStates);
+                if (result == null) {
+                    result = new ArrayList<>();
+                }
+                result.add(overflow);
+            }
+        }
+        removeState(stateMap, slot, session);
+        evictionCount.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Queues the discarded states for writing to the overflow storage. Must
+     * not be invoked while holding the lock of a state map, as the states may
+     * be written on the current thread. On a request thread, the changed
+     * overflow index is put into the session again for replication;
+     * background threads leave that to the next request of the session.
+     */
+    private void writeOverflows(final List<Overflow> overflows, final HttpSession session,
+            final boolean requestThread) {
+        final OverflowIndex index = (OverflowIndex) session.getAttribute(OVERFLOW_KEY);
+        for (final Overflow overflow: overflows) {
+            overflowWriter.write(index, overflow);
+        }
+        if (requestThread && index.takeChanged()) {
+            session.setAttribute(OVERFLOW_KEY, index);
+        }
+    }
+
+    /**
+     * Retrieves a state that is no longer in the session from the overflow
+     * storage, or from memory if it is still being written to it.
+     */
+    private NativeContinuation getOverflowedState(final HttpServletRequest request, final long key)
+            throws Exception {
+        final HttpSession session = request.getSession(false);
+        final OverflowIndex index = overflowWriter == null || session == null ? null : (OverflowIndex) session
+                .getAttribute(OVERFLOW_KEY);
+        if (index != null) {
+            final Overflow overflow = index.getPending(key);
+            if (overflow != null) {
+                hitCount.incrementAndGet();
+                return getContinuation(overflow.isEncoded() ? decode(overflow.getState()) : overflow.getState(),
+                        overflow.getStubsToFunctions(), session);
+            }
+            final String overflowId = index.getOverflowId(key);
+            if (overflowId != null) {
+                final byte[] state = overflowWriter.read(request, overflowId);
+                if (state != null) {
+                    hitCount.incrementAndGet();
+                    return getContinuation(state, null, session);
+                }
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Puts an overflow index into the session if there is none yet, or again
+     * if it was changed by a background thread, so it is replicated. Only
+     * invoked on request threads.
+     */
+    private void updateOverflowIndex(final HttpSession session) {
+        final OverflowIndex index = (OverflowIndex) session.getAttribute(OVERFLOW_KEY);
+        if (index == null) {
+            synchronized (getSessionLock(session)) {
+                if (session.getAttribute(OVERFLOW_KEY) == null) {
+                    session.setAttribute(OVERFLOW_KEY, new OverflowIndex());
+                }
+            }
+        } else if (index.takeChanged()) {
+            session.setAttribute(OVERFLOW_KEY, index);
+        }
+    }
+
+    private void removeState(final StateMap stateMap, final int slot, final HttpSession session) {
+        if (statePerAttribute) {
+            session.removeAttribute(getStateKey(stateMap.getKey(slot)));
+        }
+        stateMap.remove(slot);
+    }
+
+    private static String getStateKey(final long id) {
+        return STATE_KEY_PREFIX + Long.toHexString(id);
     }
 
     @Override
     public NativeContinuation getState(final HttpServletRequest request, final String id) {
-        final Map<Long, LocallySerializedContinuation> stateMap = getStateMap(request, false);
+        final StateMap stateMap = getStateMap(request, false);
         if (stateMap == null) {
+            missCount.incrementAndGet();
             return null;
         }
         try {
-            LocallySerializedContinuation serialized;
-            synchronized (stateMap) {
-                serialized = stateMap.get(Long.valueOf(id, 16));
+            final long key = Long.parseLong(id, 16);
+            byte[] serialized = null;
+            byte[] encoded = null;
+            Map<Object, Object> stubsToFunctions = null;
+            NativeContinuation live = null;
+            final int slot;
+            // Unless the state must be moved, concurrent retrievals can
+            // proceed in parallel. Their access counts may then race, but
+            // they are only estimates anyway.
+            final Lock lock = evictionPolicy.isAccessOrdered() ? stateMap.getLock().writeLock() : stateMap.getLock()
+                    .readLock();
+            lock.lock();
+            try {
+                slot = stateMap.find(key);
+                if (slot != StateMap.NIL) {
+                    serialized = stateMap.getDecodedState(slot);
+                    encoded = serialized == null ? stateMap.getState(slot) : null;
+                    stubsToFunctions = stateMap.getStubsToFunctions(slot);
+                    live = stateMap.getLiveState(slot);
+                    stateMap.recordAccess(slot);
+                    if (evictionPolicy.isAccessOrdered()) {
+                        stateMap.moveToEnd(slot);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (slot == StateMap.NIL) {
+                return getOverflowedState(request, key);
+            }
+            final HttpSession session = request.getSession(false);
+            if (statePerAttribute) {
+                final StateAttribute attribute = (StateAttribute) session.getAttribute(getStateKey(key));
+                if (attribute == null) {
+                    missCount.incrementAndGet();
+                    return null;
+                }
+                serialized = attribute.encoded ? null : attribute.state;
+                encoded = attribute.encoded ? attribute.state : null;
+                stubsToFunctions = attribute.stubsToFunctions;
+            }
+            hitCount.incrementAndGet();
+            if (live != null) {
+                return copyLiveState(live, session);
             }
             if (serialized == null) {
-                return null;
+                serialized = decode(encoded);
             }
-            return getContinuation(serialized, request.getSession(false));
+            return getContinuation(serialized, stubsToFunctions, session);
         } catch (final RuntimeException e) {
             throw e;
         } catch (final Exception e) {
@@ -188,9 +1224,96 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
         }
     }
 
-    private NativeContinuation getContinuation(final LocallySerializedContinuation lsc, final HttpSession session)
-            throws Exception, AssertionError {
-        final Map<Object, Object> stubsToFunctions = lsc.getStubsToFunctions();
+    @Override
+    public String getFlowId(final HttpServletRequest request, final String id) {
+        final StateMap stateMap = getStateMap(request, false);
+        if (stateMap == null) {
+            return null;
+        }
+        final long key = Long.parseLong(id, 16);
+        final Lock readLock = stateMap.getLock().readLock();
+        readLock.lock();
+        try {
+            final int slot = stateMap.find(key);
+            if (slot != StateMap.NIL) {
+                return stateMap.getFlowId(slot);
+            }
+        } finally {
+            readLock.unlock();
+        }
+        final HttpSession session = request.getSession(false);
+        final OverflowIndex index = overflowWriter == null || session == null ? null : (OverflowIndex) session
+                .getAttribute(OVERFLOW_KEY);
+        if (index != null) {
+            final Overflow overflow = index.getPending(key);
+            if (overflow != null) {
+                return overflow.getFlowId();
+            }
+            final String overflowId = index.getOverflowId(key);
+            if (overflowId != null) {
+                return overflowWriter.getFlowId(request, overflowId);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        final StateMap stateMap = getStateMap(request, false);
+        if (stateMap == null) {
+            return;
+        }
+        final HttpSession session = request.getSession(false);
+        final Lock writeLock = stateMap.getLock().writeLock();
+        writeLock.lock();
+        try {
+            // States shared with other flows are kept for them
+            boolean changed = false;
+            for (int slot = stateMap.first(); slot != StateMap.NIL;) {
+                final int next = stateMap.next(slot);
+                if (stateMap.getReferenceCount(slot, flowId) > 0) {
+                    if (stateMap.removeReferences(slot, flowId, Integer.MAX_VALUE)) {
+                        removeState(stateMap, slot, session);
+                    }
+                    changed = true;
+                }
+                slot = next;
+            }
+            if (statePerAttribute && changed) {
+                session.setAttribute(INDEX_KEY, stateMap);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (overflowWriter != null) {
+            final OverflowIndex index = (OverflowIndex) session.getAttribute(OVERFLOW_KEY);
+            if (index != null) {
+                index.removePendingFlow(flowId);
+            }
+            overflowWriter.purgeFlow(request, flowId);
+        }
+    }
+
+    /**
+     * Copies a live state, so the stored state remains unaffected when the
+     * returned continuation is resumed.
+     */
+    private NativeContinuation copyLiveState(final NativeContinuation live, final HttpSession session)
+            throws Exception {
+        final StubProvider stubProvider = session == null ? null : (StubProvider) session
+                .getAttribute(STUB_PROVIDER_KEY);
+        final NativeContinuation copy = cloneContinuation(live, stubProvider);
+        if (copy != null) {
+            return copy;
+        }
+        // Only if the stub provider changed since the state was stored
+        final Map<Object, Object> stubsToFunctions = new HashMap<>();
+        return getContinuation(serializeContinuation(live, stubsToFunctions, stubProvider), stubsToFunctions,
+                session);
+    }
+
+    private NativeContinuation getContinuation(final byte[] serializedState,
+            final Map<Object, Object> stubsToFunctions, final HttpSession session) throws Exception, AssertionError {
         StubResolver stubResolver;
         if (session != null) {
             stubResolver = (StubResolver) session.getAttribute(STUB_RESOLVER_KEY);
@@ -199,7 +1322,7 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
         }
 
         if (stubResolver != null) {
-            if (stubsToFunctions != null && !stubsToFunctions.isEmpty()) {
+            if (stubsToFunctions != null) {
                 final StubResolver fstubResolver = stubResolver;
                 stubResolver = new StubResolver() {
                     @Override
@@ -209,7 +1332,7 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
                     }
                 };
             }
-        } else if (stubsToFunctions != null && !stubsToFunctions.isEmpty()) {
+        } else if (stubsToFunctions != null) {
             stubResolver = new StubResolver() {
                 @Override
                 public Object resolveStub(final Object stub) throws InvalidObjectException {
@@ -218,27 +1341,47 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
             };
         }
 
-        return deserializeContinuation(lsc.getSerializedState(), stubResolver);
+        return deserializeContinuation(serializedState, stubResolver);
     }
 
-    private Map<Long, LocallySerializedContinuation> getStateMap(final HttpServletRequest request, final boolean create) {
+    private StateMap getStateMap(final HttpServletRequest request, final boolean create) {
         final HttpSession session = request.getSession(create);
         if (session == null) {
             return null;
         }
-        Map<Long, LocallySerializedContinuation> m = (Map) session.getAttribute(MAP_KEY);
+        final String mapKey = getMapKey();
+        StateMap m = (StateMap) session.getAttribute(mapKey);
         if (m == null) {
-            synchronized (session) {
-                m = (Map) session.getAttribute(MAP_KEY);
+            // Don't lock the session, as the servlet container may lock it
+            // too
+            synchronized (getSessionLock(session)) {
+                m = (StateMap) session.getAttribute(mapKey);
                 if (m == null) {
-                    m = new LinkedHashMap<>(maxStates);
-                    session.setAttribute(MAP_KEY, m);
+                    m = new StateMap(maxStates);
+                    session.setAttribute(mapKey, m);
                 }
             }
         }
+        if (overflowWriter != null) {
+            updateOverflowIndex(session);
+        }
+        if (trackingSessions) {
+            // Also registers maps of sessions that were replicated or
+            // activated
+            sessionSweeper.track(m, session);
+        }
         return m;
     }
 
+    private String getMapKey() {
+        return statePerAttribute ? INDEX_KEY : MAP_KEY;
+    }
+
+    private Object getSessionLock(final HttpSession session) {
+        final int h = session.getId().hashCode();
+        return sessionLocks[(h ^ (h >>> 16)) & (sessionLocks.length - 1)];
+    }
+
     /**
      * Enumerates all the continuations bound to a particular HTTP session. Can
      * be used from a session listener to post-process continuations in
@@ -250,14 +1393,52 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
      *            a callback that will be invoked for each continuation.
      */
     public void forEachContinuation(final HttpSession session, final ContinuationCallback callback) {
-        final Map<Long, LocallySerializedContinuation> m = (Map) session.getAttribute(MAP_KEY);
+        final StateMap m = (StateMap) session.getAttribute(getMapKey());
         if (m == null) {
             return;
         }
-        for (final Map.Entry<Long, LocallySerializedContinuation> entry: m.entrySet()) {
-            final String id = Long.toHexString(entry.getKey().longValue());
+        final List<String> ids = new ArrayList<>();
+        final List<byte[]> states = new ArrayList<>();
+        final List<byte[]> encodedStates = new ArrayList<>();
+        final List<Map<Object, Object>> stubs = new ArrayList<>();
+        final List<NativeContinuation> lives = new ArrayList<>();
+        final Lock readLock = m.getLock().readLock();
+        readLock.lock();
+        try {
+            for (int slot = m.first(); slot != StateMap.NIL; slot = m.next(slot)) {
+                ids.add(Long.toHexString(m.getKey(slot)));
+                if (statePerAttribute) {
+                    final StateAttribute attribute = (StateAttribute) session.getAttribute(getStateKey(m
+                            .getKey(slot)));
+                    final boolean encoded = attribute != null && attribute.encoded;
+                    states.add(attribute == null || encoded ? null : attribute.state);
+                    encodedStates.add(encoded ? attribute.state : null);
+                    stubs.add(attribute == null ? null : attribute.stubsToFunctions);
+                } else {
+                    final byte[] decoded = m.getDecodedState(slot);
+                    states.add(decoded);
+                    encodedStates.add(decoded == null ? m.getState(slot) : null);
+                    stubs.add(m.getStubsToFunctions(slot));
+                }
+                lives.add(m.getLiveState(slot));
+            }
+        } finally {
+            readLock.unlock();
+        }
+        for (int i = 0; i < ids.size(); ++i) {
+            final String id = ids.get(i);
+            if (states.get(i) == null && encodedStates.get(i) == null && lives.get(i) == null) {
+                continue;
+            }
             try {
-                callback.forContinuation(id, getContinuation(entry.getValue(), session));
+                final NativeContinuation live = lives.get(i);
+                if (live != null) {
+                    callback.forContinuation(id, copyLiveState(live, session));
+                } else {
+                    final byte[] state = states.get(i);
+                    callback.forContinuation(id, getContinuation(state != null ? state : decode(encodedStates
+                            .get(i)), stubs.get(i), session));
+                }
             } catch (final Exception e) {
                 log.warn("Failed to process continuation " + id, e);
             }
@@ -284,23 +1465,21 @@ public class HttpSessionFlowStateStorage extends FlowStateSerializer implements
         public void forContinuation(String id, NativeContinuation continuation) throws Exception;
     }
 
-    private static class LocallySerializedContinuation implements Serializable {
+    /**
+     * A state kept in its own session attribute. The map of stubbed functions
+     * is not replicated with the session.
+     */
+    private static class StateAttribute implements Serializable {
         private static final long serialVersionUID = 1L;
 
-        private final byte[] serializedState;
-        private transient final Map<Object, Object> stubsToFunctions;
-
-        LocallySerializedContinuation(final byte[] serializedState, final Map<Object, Object> stubsToFunctions) {
-            this.serializedState = serializedState;
-            this.stubsToFunctions = stubsToFunctions;
-        }
-
-        byte[] getSerializedState() {
-            return serializedState;
-        }
+        final byte[] state;
+        final boolean encoded;
+        final transient Map<Object, Object> stubsToFunctions;
 
-        Map<Object, Object> getStubsToFunctions() {
-            return stubsToFunctions;
+        StateAttribute(final byte[] state, final boolean encoded, final Map<Object, Object> stubsToFunctions) {
+            this.state = state;
+            this.encoded = encoded;
+            this.stubsToFunctions = stubsToFunctions.isEmpty() ? null : stubsToFunctions;
         }
     }
-}
\ No newline at end of file
+}
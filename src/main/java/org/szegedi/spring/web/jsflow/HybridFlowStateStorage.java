@@ -0,0 +1,179 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow;
+
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import org.mozilla.javascript.NativeContinuation;
+import org.springframework.util.Base64Utils;
+import org.szegedi.spring.web.jsflow.support.AbstractFlowStateStorage;
+
+/**
+ * <p>
+ * A flow state storage that keeps small states on the client and large ones
+ * on the server. A state whose encoded serialized form is no larger than
+ * {@link #setMaxClientStateSize(int) the threshold} is returned BASE64-encoded
+ * in its id, the same way a {@link ClientSideFlowStateStorage} does it, so it
+ * takes no space on the server. Larger states, which would make the ids too
+ * long for URLs and form fields, are stored in a server-side storage (i.e. a
+ * {@link HttpSessionFlowStateStorage} or a {@link JdbcFlowStateStorage}). The
+ * first character of the id tells which of the two holds the state.
+ * </p>
+ * <p>
+ * As with a {@link ClientSideFlowStateStorage}, you should install at least a
+ * digital signature providing
+ * {@link org.szegedi.spring.web.jsflow.codec.IntegrityCodec} into this storage
+ * to prevent the users from tampering with the client-side states. When the
+ * server-side storage is an {@link AbstractFlowStateStorage}, it is passed the
+ * already serialized and encoded state, and its own codec is bypassed. A
+ * {@link HttpSessionFlowStateStorage} is passed the already serialized state,
+ * and encodes it with its own codec, unless a stub provider is bound into the
+ * session, in which case it serializes the state once more using the
+ * provider. Any other server-side storage is passed the continuation, and
+ * serializes it once more.
+ * </p>
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class HybridFlowStateStorage extends AbstractFlowStateStorage {
+    private static final char CLIENT_SIDE = 'C';
+    private static final char SERVER_SIDE = 'S';
+
+    private FlowStateStorage serverSideStorage;
+    private int maxClientStateSize = 1024;
+
+    /**
+     * Sets the storage used for states larger than the maximum client-side
+     * state size. Mandatory.
+     *
+     * @param serverSideStorage
+     */
+    public void setServerSideStorage(final FlowStateStorage serverSideStorage) {
+        this.serverSideStorage = serverSideStorage;
+    }
+
+    /**
+     * Sets the maximum size in bytes of an encoded serialized state that is
+     * stored on the client. The id of such a state is about a third longer, due
+     * to the BASE64 encoding. Defaults to 1024.
+     *
+     * @param maxClientStateSize
+     */
+    public void setMaxClientStateSize(final int maxClientStateSize) {
+        if (maxClientStateSize < 0) {
+            throw new IllegalArgumentException("maxClientStateSize < 0");
+        }
+        this.maxClientStateSize = maxClientStateSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        if (serverSideStorage == null) {
+            throw new IllegalArgumentException("serverSideStorage must be set");
+        }
+    }
+
+    @Override
+    public NativeContinuation getState(final HttpServletRequest request, final String id) {
+        if (id.length() == 0) {
+            return null;
+        }
+        switch (id.charAt(0)) {
+            case CLIENT_SIDE: {
+                return super.getState(request, id);
+            }
+            case SERVER_SIDE: {
+                if (serverSideStorage instanceof AbstractFlowStateStorage) {
+                    return super.getState(request, id);
+                }
+                return serverSideStorage.getState(request, id.substring(1));
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    protected byte[] getSerializedState(final HttpServletRequest request, final String id) throws Exception {
+        if (id.charAt(0) == CLIENT_SIDE) {
+            return Base64Utils.decodeFromString(id.substring(1));
+        }
+        return getSerializedState((AbstractFlowStateStorage) serverSideStorage, request, id.substring(1));
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state, final String flowId) {
+        if (serverSideStorage instanceof AbstractFlowStateStorage) {
+            return super.storeState(request, state, flowId);
+        }
+        final Map<Object, Object> stubsToFunctions = new HashMap<>();
+        final byte[] serialized;
+        final byte[] b;
+        try {
+            serialized = serializeContinuation(state, stubsToFunctions, null);
+            b = encodeState(serialized);
+        } catch (final Exception e) {
+            throw new FlowStateStorageException("Failed to store state", e);
+        }
+        if (b.length <= maxClientStateSize) {
+            return CLIENT_SIDE + Base64Utils.encodeToString(b);
+        }
+        if (serverSideStorage instanceof HttpSessionFlowStateStorage
+                && ((HttpSessionFlowStateStorage) serverSideStorage).getStubProvider(request) == null) {
+            return SERVER_SIDE + ((HttpSessionFlowStateStorage) serverSideStorage).storeSerializedState(request,
+                    state, serialized, stubsToFunctions, flowId);
+        }
+        return SERVER_SIDE + serverSideStorage.storeState(request, state, flowId);
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state) throws Exception {
+        return storeSerializedState(request, state, null);
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state, final String flowId)
+            throws Exception {
+        if (state.length <= maxClientStateSize) {
+            return CLIENT_SIDE + Base64Utils.encodeToString(state);
+        }
+        return SERVER_SIDE + storeSerializedState((AbstractFlowStateStorage) serverSideStorage, request, state,
+                flowId);
+    }
+
+    /**
+     * Returns the flow id recorded by the server-side storage. Client-side
+     * states don't record their flow, so resuming one starts a new flow.
+     */
+    @Override
+    public String getFlowId(final HttpServletRequest request, final String id) {
+        return id.charAt(0) == SERVER_SIDE ? serverSideStorage.getFlowId(request, id.substring(1)) : null;
+    }
+
+    /**
+     * Purges the flow from the server-side storage. Client-side states can't
+     * be purged.
+     */
+    @Override
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        serverSideStorage.purgeFlow(request, flowId);
+    }
+}
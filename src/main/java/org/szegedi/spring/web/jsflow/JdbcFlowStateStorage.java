@@ -15,20 +15,53 @@
 */
 package org.szegedi.spring.web.jsflow;
 
+import java.io.InputStream;
 import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.text.DateFormat;
+import java.text.Format;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.NativeContinuation;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
-import org.szegedi.spring.web.jsflow.support.AbstractFlowStateStorage;
+import org.szegedi.spring.web.jsflow.support.ChunkedByteArrayOutputStream;
+import org.szegedi.spring.web.jsflow.support.FlowStateIdGenerator;
+import org.szegedi.spring.web.jsflow.support.RandomFlowStateIdGenerator;
+import org.szegedi.spring.web.jsflow.support.ReservableFlowStateStorage;
+import org.szegedi.spring.web.jsflow.support.TimeOrderedFlowStateIdGenerator;
 
 /**
  * <p>
@@ -38,43 +71,238 @@ import org.szegedi.spring.web.jsflow.support.AbstractFlowStateStorage;
  * column capable of storing a byte array (i.e. a BLOB) named "state" in a table
  * named "webflowstates". Additionally, a column named "random" is used to store
  * a nonunique but random 32-bit number. This makes it harder for attackers to
- * guess valid flowstate IDs. Note that no mechanism for purging "old" states is
- * provided. You need to write your own periodical task to delete the states
- * that are considered old. Adding a timestamp column to the table that defaults
- * to the time of insert is advised. I.e. a MySQL table definition would look
- * like
+ * guess valid flowstate IDs. A column named "created" holds the time of
+ * insert, and is used to purge old states when a state time-to-live is set.
+ * I.e. a MySQL table definition would look like
  * </p>
  * <p>
  * <tt>create table webflowstates (id bigint not null auto_increment, state blob
  * not null, random not null int, created timestamp default current_timestamp, primary key (id));
  * </tt>
+ * </p>
+ * <p>
+ * If a {@link FlowStateIdGenerator} is set, the values of the "id" column are
+ * generated in the JVM instead of by the database, and are explicitly
+ * inserted. This saves retrieving the generated key after each insert, and
+ * allows the ids to be reserved before the state is actually inserted, i.e. by
+ * a {@link TieredFlowStateStorage} in write-behind mode. The generated ids
+ * must be unique across all JVMs sharing the table. A
+ * {@link TimeOrderedFlowStateIdGenerator} with a distinct node id on each JVM is recommended: its ids are increasing,
+ * so inserts append to the end of the primary key index, and states can be
+ * selected by age using the id column alone. The value of the "random" column
+ * still becomes part of the state id, so the time ordered ids don't make state
+ * ids any easier to guess.
+ * </p>
+ * <p>
+ * If a state time-to-live is set, the time of insert is explicitly written
+ * into the "created" column, and a background thread periodically deletes the
+ * expired states, in batches of bounded size so that no delete holds locks
+ * for long. Expired states are selected by the "created" column, which should
+ * then be indexed; with a {@link TimeOrderedFlowStateIdGenerator}, the
+ * selection is also narrowed to the ids generated before the expiry, so the
+ * primary key index can be used instead. Rows without a "created" value,
+ * inserted while no time-to-live was set, are never purged. Alternatively, if the table is partitioned by time in the
+ * database, the storage can drop whole expired partitions instead of deleting
+ * rows; see {@link #setDropPartitionStatement(String)}.
+ * </p>
+ * <p>
+ * In write-behind mode, stored states are put in a bounded queue and inserted
+ * by a background thread in JDBC batches. Requests storing a state block while
+ * the queue is full. States still in the queue are retrieved from it. A state
+ * that can't be inserted is retried a few times, and stays retrievable from
+ * memory meanwhile; if it still can't be inserted, the next attempt to
+ * retrieve it fails with a {@link FlowStateStorageException}. Such failed
+ * states are only remembered for a {@link #setFailureRetention(long) limited
+ * time}, and their number is bounded; see {@link #getFailedWriteCount()} for
+ * monitoring them. Once the storage
+ * was destroyed, states are inserted by the requests storing them. Write
+ * behind requires ids generated in the JVM; if no flow state id generator is
+ * set, a {@link RandomFlowStateIdGenerator} is used. Queued states are lost if
+ * the JVM terminates without the storage being destroyed.
+ * </p>
+ * <p>
+ * The states can be spread over several databases (shards), each having its
+ * own table, by setting a list of {@link JdbcOperations} objects instead of a
+ * single one. New states are inserted into a randomly chosen shard, with the
+ * probability of choosing a shard proportional to its weight. The index of the
+ * shard is encoded in the state id, so states are always looked up in the
+ * shard they were inserted into. New shards can be added to the end of the
+ * list at any time without affecting the existing states, but shards must
+ * never be removed or reordered; to stop inserting into a shard, set its weight
+ * to 0.
+ * </p>
+ * <p>
+ * States can be retrieved from read replicas of the databases, set either with
+ * {@link #setReadJdbcOperations(JdbcOperations)} or, for shards, with
+ * {@link #setReadShards(List)}. As a replica might lag behind its primary
+ * database, states not found in the replica are looked up in the primary
+ * database. Also, states inserted by this storage during the last
+ * {@link #setReplicationLag(long) replication lag} are looked up in the
+ * primary database directly, as the next request of a flow usually asks for
+ * the state just inserted.
+ * </p>
+ * <p>
+ * If a flow id column is set, the id of the flow each state belongs to is
+ * stored with it, and all states of a flow are deleted when the flow
+ * completes. The column must be able to hold strings of up to 16 characters.
+ * </p>
  *
  * @author Attila Szegedi
  * @version $Id$
  */
-public class JdbcFlowStateStorage extends AbstractFlowStateStorage {
+public class JdbcFlowStateStorage extends ReservableFlowStateStorage implements DisposableBean {
+    private static final Log log = LogFactory.getLog(JdbcFlowStateStorage.class);
     private static final char SEPARATOR = ':';
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+    private static final long RETRY_DELAY = 1000;
+    private static final long OFFER_TIMEOUT = 100;
+
     private JdbcOperations jdbcOperations;
+    private List<JdbcOperations> shardList;
+    private List<Integer> shardWeightList;
+    private JdbcOperations[] shards;
+    private int[] shardWeights;
+    private int totalShardWeight;
+    private JdbcOperations readJdbcOperations;
+    private List<JdbcOperations> readShardList;
+    private JdbcOperations[] readShards;
+    private long replicationLag = 5000;
+    private final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<RecentWrite> recentWriteQueue = new ConcurrentLinkedQueue<>();
     private String tableName = "webflowstates";
     private String stateColumnName = "state";
     private String randomColumnName = "random";
     private String idColumnName = "id";
+    private String flowIdColumnName;
+    private String deleteFlowQuery;
     private String selectQuery;
+    private String selectFlowIdQuery;
     private String insertQuery;
     private Random random;
+    private FlowStateIdGenerator flowStateIdGenerator;
+    private boolean writeBehind;
+    private int batchSize = 100;
+    private int maxPendingWrites = 1000;
+    private BlockingQueue<PendingState> writeQueue;
+    private final Map<String, PendingState> pendingStates = new ConcurrentHashMap<>();
+    private Thread writerThread;
+    private final PendingState stop = new PendingState(null, 0, 0, null, null, null, null, null);
+    private volatile boolean stopped;
+    // Only accessed by the writer thread
+    private final List<PendingState> retries = new ArrayList<>();
+    private final ArrayDeque<PendingState> failedStates = new ArrayDeque<>();
+    private long failureRetention = 60000;
+    private final AtomicLong failedWriteCount = new AtomicLong();
+    private String createdColumnName = "created";
+    private long stateTimeToLive;
+    private long purgeInterval = 60000;
+    private int purgeBatchSize = 1000;
+    private long partitionPeriod = 24 * 60 * 60 * 1000;
+    private String dropPartitionStatement;
+    private ScheduledExecutorService purger;
+    private long lastDroppedPartition = Long.MIN_VALUE;
+    private boolean streaming;
 
     public void setJdbcOperations(final JdbcOperations jdbcOperations) {
         this.jdbcOperations = jdbcOperations;
     }
 
+    /**
+     * Sets the JDBC operations objects of several shards the states are spread
+     * over. If set, the JDBC operations object set with
+     * {@link #setJdbcOperations(JdbcOperations)} is ignored. Shards can be
+     * appended to the list later, but must never be removed or reordered.
+     *
+     * @param shards
+     */
+    public void setShards(final List<JdbcOperations> shards) {
+        this.shardList = shards;
+    }
+
+    /**
+     * Sets the relative weights of the shards, in the same order as the
+     * shards. A shard's weight is proportional to the share of new states
+     * inserted into it. A weight of 0 means no new states are inserted into the
+     * shard, but the existing ones are still looked up in it. If not set, every
+     * shard has the weight 1.
+     *
+     * @param shardWeights
+     */
+    public void setShardWeights(final List<Integer> shardWeights) {
+        this.shardWeightList = shardWeights;
+    }
+
+    /**
+     * Sets the JDBC operations object of a read replica of the database.
+     * States are retrieved from it when possible. It is ignored if shards are
+     * used; see {@link #setReadShards(List)} instead.
+     *
+     * @param readJdbcOperations
+     */
+    public void setReadJdbcOperations(final JdbcOperations readJdbcOperations) {
+        this.readJdbcOperations = readJdbcOperations;
+    }
+
+    /**
+     * Sets the JDBC operations objects of read replicas of the shards, in the
+     * same order as the shards. An element can be null if the shard has no
+     * replica, and the list can be shorter than the list of shards.
+     *
+     * @param readShards
+     */
+    public void setReadShards(final List<JdbcOperations> readShards) {
+        this.readShardList = readShards;
+    }
+
+    /**
+     * Sets the time after inserting a state during which the state is looked
+     * up in the primary database instead of the read replica. Defaults to 5
+     * seconds.
+     *
+     * @param replicationLag
+     *            the replication lag in milliseconds
+     */
+    public void setReplicationLag(final long replicationLag) {
+        if (replicationLag < 0) {
+            throw new IllegalArgumentException("replicationLag < 0");
+        }
+        this.replicationLag = replicationLag;
+    }
+
     public void setIdColumnName(final String idColumnName) {
         this.idColumnName = idColumnName;
     }
 
+    /**
+     * Sets the name of the column storing the id of the flow each state
+     * belongs to. If set, all states of a completed flow are deleted in a
+     * single statement; the column should then be indexed. The flow of a
+     * resumed state is read back from the column, so a flow can only be
+     * continued and purged by a client holding one of its states. If not set
+     * (the default), no flow ids are stored, every resumed state starts a new
+     * flow, and states of completed flows remain in the table until they
+     * expire.
+     *
+     * @param flowIdColumnName
+     */
+    public void setFlowIdColumnName(final String flowIdColumnName) {
+        this.flowIdColumnName = flowIdColumnName;
+    }
+
     public void setRandom(final Random random) {
         this.random = random;
     }
 
+    /**
+     * Sets the generator for the values of the id column. If not set, the
+     * values are generated by the database.
+     *
+     * @param flowStateIdGenerator
+     */
+    public void setFlowStateIdGenerator(final FlowStateIdGenerator flowStateIdGenerator) {
+        this.flowStateIdGenerator = flowStateIdGenerator;
+    }
+
     public void setRandomColumnName(final String randomColumnName) {
         this.randomColumnName = randomColumnName;
     }
@@ -87,15 +315,286 @@ public class JdbcFlowStateStorage extends AbstractFlowStateStorage {
         this.tableName = tableName;
     }
 
+    /**
+     * Sets whether states are inserted in batches by a background thread.
+     * Defaults to false.
+     *
+     * @param writeBehind
+     */
+    public void setWriteBehind(final boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Sets the maximum number of states inserted in a single JDBC batch in
+     * write-behind mode. Defaults to 100.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize <= 0");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the maximum number of states waiting to be inserted in write-behind
+     * mode. Defaults to 1000.
+     *
+     * @param maxPendingWrites
+     */
+    public void setMaxPendingWrites(final int maxPendingWrites) {
+        if (maxPendingWrites <= 0) {
+            throw new IllegalArgumentException("maxPendingWrites <= 0");
+        }
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * Sets the time in milliseconds a state that couldn't be inserted in
+     * write-behind mode is remembered, so that its retrieval reports the
+     * failure instead of not finding the state. At most
+     * {@link #setMaxPendingWrites(int) maxPendingWrites} failed states are
+     * remembered; beyond that, the oldest ones are forgotten first. Defaults
+     * to 60000.
+     *
+     * @param failureRetention
+     * @since 1.4
+     */
+    public void setFailureRetention(final long failureRetention) {
+        if (failureRetention < 0) {
+            throw new IllegalArgumentException("failureRetention < 0");
+        }
+        this.failureRetention = failureRetention;
+    }
+
+    /**
+     * Returns the number of states that couldn't be inserted in write-behind
+     * mode, even after retries, since the storage was created.
+     *
+     * @return the number of failed writes
+     * @since 1.4
+     */
+    public long getFailedWriteCount() {
+        return failedWriteCount.get();
+    }
+
+    public void setCreatedColumnName(final String createdColumnName) {
+        this.createdColumnName = createdColumnName;
+    }
+
+    /**
+     * Sets the time after which stored states expire and are purged from the
+     * table. Defaults to 0, meaning states never expire.
+     *
+     * @param stateTimeToLive
+     *            the time to live in milliseconds
+     */
+    public void setStateTimeToLive(final long stateTimeToLive) {
+        if (stateTimeToLive < 0) {
+            throw new IllegalArgumentException("stateTimeToLive < 0");
+        }
+        this.stateTimeToLive = stateTimeToLive;
+    }
+
+    /**
+     * Sets the period of purging the expired states. Defaults to one minute.
+     *
+     * @param purgeInterval
+     *            the purge interval in milliseconds
+     */
+    public void setPurgeInterval(final long purgeInterval) {
+        if (purgeInterval <= 0) {
+            throw new IllegalArgumentException("purgeInterval <= 0");
+        }
+        this.purgeInterval = purgeInterval;
+    }
+
+    /**
+     * Sets the maximum number of states deleted in one batch when purging the
+     * expired states. Defaults to 1000.
+     *
+     * @param purgeBatchSize
+     */
+    public void setPurgeBatchSize(final int purgeBatchSize) {
+        if (purgeBatchSize <= 0) {
+            throw new IllegalArgumentException("purgeBatchSize <= 0");
+        }
+        this.purgeBatchSize = purgeBatchSize;
+    }
+
+    /**
+     * Sets the time span covered by a single partition of the table when
+     * expired partitions are dropped. The partitions are assumed to start at
+     * whole multiples of the period since 1970-01-01T00:00:00Z. Defaults to one
+     * day.
+     *
+     * @param partitionPeriod
+     *            the partition period in milliseconds
+     */
+    public void setPartitionPeriod(final long partitionPeriod) {
+        if (partitionPeriod <= 0) {
+            throw new IllegalArgumentException("partitionPeriod <= 0");
+        }
+        this.partitionPeriod = partitionPeriod;
+    }
+
+    /**
+     * Sets the SQL statement that drops one partition of a table partitioned
+     * by the time of insert. If set, expired states are purged by dropping the
+     * partitions whose every state expired instead of deleting rows. The
+     * statement is a {@link MessageFormat} pattern, with the start of the
+     * partition's period as its only argument, formatted in UTC. I.e.
+     * <tt>ALTER TABLE webflowstates DROP PARTITION p{0,date,yyyyMMdd}</tt>
+     * for a natively partitioned table, or
+     * <tt>DROP TABLE webflowstates_{0,date,yyyyMMdd}</tt> for a view over
+     * daily tables. Failures to drop a partition, i.e. because it doesn't
+     * exist, are ignored. Partitions are dropped as they expire while the
+     * storage runs; of the partitions that expired before it started, only
+     * the latest one is dropped.
+     *
+     * @param dropPartitionStatement
+     */
+    public void setDropPartitionStatement(final String dropPartitionStatement) {
+        this.dropPartitionStatement = dropPartitionStatement;
+    }
+
+    /**
+     * Sets whether states are streamed to and from the database instead of
+     * being exchanged as byte arrays. Streaming reduces the memory needed for
+     * large states, especially with a binary state codec that can itself
+     * stream (i.e. a {@link org.szegedi.spring.web.jsflow.codec.CompressionCodec}).
+     * It is used with synchronous writes only; in write-behind mode, the
+     * states are always stored as byte arrays. Note that while a state is
+     * read, its deserialization takes place while the database connection is
+     * held. Defaults to false.
+     *
+     * @param streaming
+     */
+    public void setStreaming(final boolean streaming) {
+        this.streaming = streaming;
+    }
+
     @Override
     public void afterPropertiesSet() throws Exception {
         super.afterPropertiesSet();
+        if (shardList != null && !shardList.isEmpty()) {
+            shards = shardList.toArray(new JdbcOperations[shardList.size()]);
+        } else if (jdbcOperations != null) {
+            shards = new JdbcOperations[] { jdbcOperations };
+        } else {
+            throw new IllegalArgumentException("Either jdbcOperations or shards must be set");
+        }
+        readShards = new JdbcOperations[shards.length];
+        if (shardList != null && !shardList.isEmpty()) {
+            if (readShardList != null) {
+                if (readShardList.size() > shards.length) {
+                    throw new IllegalArgumentException("More readShards than shards");
+                }
+                for (int i = 0; i < readShardList.size(); ++i) {
+                    readShards[i] = readShardList.get(i);
+                }
+            }
+        } else {
+            readShards[0] = readJdbcOperations;
+        }
+        shardWeights = new int[shards.length];
+        totalShardWeight = 0;
+        for (int i = 0; i < shards.length; ++i) {
+            if (shardWeightList == null) {
+                shardWeights[i] = 1;
+            } else if (shardWeightList.size() != shards.length) {
+                throw new IllegalArgumentException("shardWeights must have as many elements as shards");
+            } else if (shardWeightList.get(i).intValue() < 0) {
+                throw new IllegalArgumentException("Negative weight for shard " + i);
+            } else {
+                shardWeights[i] = shardWeightList.get(i).intValue();
+            }
+            totalShardWeight += shardWeights[i];
+        }
+        if (totalShardWeight == 0) {
+            throw new IllegalArgumentException("At least one shard must have a positive weight");
+        }
         if (random == null) {
             random = new SecureRandom();
         }
+        if (writeBehind && flowStateIdGenerator == null) {
+            final RandomFlowStateIdGenerator idGen = new RandomFlowStateIdGenerator();
+            idGen.setRandom(random);
+            flowStateIdGenerator = idGen;
+        }
+        if (flowStateIdGenerator != null && flowStateIdGenerator.dependsOnContinuation()) {
+            throw new IllegalArgumentException("flowStateIdGenerator must not depend on the continuation");
+        }
         selectQuery = "SELECT " + stateColumnName + " FROM " + tableName + " WHERE " + idColumnName + "=? AND "
                 + randomColumnName + "=?";
-        insertQuery = "INSERT INTO " + tableName + " (" + stateColumnName + ", " + randomColumnName + ") VALUES(?,?)";
+        final StringBuilder columns = new StringBuilder(stateColumnName).append(", ").append(randomColumnName);
+        String values = "?,?";
+        if (flowStateIdGenerator != null) {
+            columns.append(", ").append(idColumnName);
+            values += ",?";
+        }
+        if (stateTimeToLive > 0) {
+            columns.append(", ").append(createdColumnName);
+            values += ",?";
+        }
+        if (flowIdColumnName != null) {
+            columns.append(", ").append(flowIdColumnName);
+            values += ",?";
+            deleteFlowQuery = "DELETE FROM " + tableName + " WHERE " + flowIdColumnName + "=?";
+            selectFlowIdQuery = "SELECT " + flowIdColumnName + " FROM " + tableName + " WHERE " + idColumnName
+                    + "=? AND " + randomColumnName + "=?";
+        }
+        insertQuery = "INSERT INTO " + tableName + " (" + columns + ") VALUES(" + values + ")";
+        if (writeBehind) {
+            writeQueue = new ArrayBlockingQueue<>(maxPendingWrites);
+            writerThread = new Thread("JdbcFlowStateStorage writer") {
+                @Override
+                public void run() {
+                    writeQueuedStates();
+                }
+            };
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        if (stateTimeToLive > 0) {
+            purger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r, "JdbcFlowStateStorage purger");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            purger.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        purgeExpiredStates();
+                    } catch (final RuntimeException e) {
+                        log.error("Failed to purge expired states", e);
+                    }
+                }
+            }, purgeInterval, purgeInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Inserts the states still waiting in the write-behind queue and stops the
+     * background writer.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (purger != null) {
+            purger.shutdownNow();
+        }
+        if (writerThread != null) {
+            stopped = true;
+            writeQueue.put(stop);
+            writerThread.join();
+        }
     }
 
     private static final ResultSetExtractor<byte[]> EXTRACTOR = new ResultSetExtractor<byte[]>() {
@@ -108,33 +607,577 @@ public class JdbcFlowStateStorage extends AbstractFlowStateStorage {
         }
     };
 
+    private static final ResultSetExtractor<String> FLOW_ID_EXTRACTOR = new ResultSetExtractor<String>() {
+        @Override
+        public String extractData(final ResultSet rs) throws SQLException {
+            if (rs.next()) {
+                return rs.getString(1);
+            }
+            return null;
+        }
+    };
+
+    @Override
+    public NativeContinuation getState(final HttpServletRequest request, final String id) {
+        if (!streaming || pendingStates.containsKey(id)) {
+            return super.getState(request, id);
+        }
+        return queryState(id, selectQuery, new ResultSetExtractor<NativeContinuation>() {
+            @Override
+            public NativeContinuation extractData(final ResultSet rs) throws SQLException {
+                if (!rs.next()) {
+                    return null;
+                }
+                try (final InputStream in = rs.getBinaryStream(1)) {
+                    return readState(in);
+                } catch (final SQLException | RuntimeException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    throw new FlowStateStorageException("Failed to load state", e);
+                }
+            }
+        });
+    }
+
     @Override
     protected byte[] getSerializedState(final HttpServletRequest request, final String id) throws Exception {
-        return jdbcOperations.query(new PreparedStatementCreator() {
+        final PendingState pendingState = pendingStates.get(id);
+        if (pendingState != null) {
+            if (pendingState.failure != null) {
+                // Report the failure once, then forget the state
+                pendingStates.remove(id);
+                throw new FlowStateStorageException("Failed to write state " + id, pendingState.failure);
+            }
+            return pendingState.state;
+        }
+        return queryState(id, selectQuery, EXTRACTOR);
+    }
+
+    @Override
+    public String getFlowId(final HttpServletRequest request, final String id) {
+        if (selectFlowIdQuery == null) {
+            return null;
+        }
+        final PendingState pendingState = pendingStates.get(id);
+        if (pendingState != null) {
+            return pendingState.flowId;
+        }
+        return queryState(id, selectFlowIdQuery, FLOW_ID_EXTRACTOR);
+    }
+
+    private <T> T queryState(final String id, final String query, final ResultSetExtractor<T> extractor) {
+        final StateKey stateKey = parseStateId(id);
+        if (stateKey == null) {
+            return null;
+        }
+        final PreparedStatementCreator select = new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(final Connection con) throws SQLException {
-                final PreparedStatement statement = con.prepareStatement(selectQuery);
-                final int i = id.indexOf(SEPARATOR);
-                statement.setString(1, id.substring(i + 1));
-                statement.setString(2, id.substring(0, i));
+                final PreparedStatement statement = con.prepareStatement(query);
+                statement.setString(1, stateKey.key);
+                statement.setString(2, stateKey.random);
                 return statement;
             };
-        }, EXTRACTOR);
+        };
+        final JdbcOperations readShard = readShards[stateKey.shard];
+        if (readShard != null && !isRecentlyWritten(id)) {
+            final T state = readShard.query(select, extractor);
+            if (state != null) {
+                return state;
+            }
+        }
+        return shards[stateKey.shard].query(select, extractor);
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state, final String flowId) {
+        if (!streaming || writeQueue != null) {
+            return super.storeState(request, state, flowId);
+        }
+        try {
+            return insertState(null, writeState(state), flowId);
+        } catch (final Exception e) {
+            throw new FlowStateStorageException("Failed to store state", e);
+        }
     }
 
     @Override
     protected String storeSerializedState(final HttpServletRequest request, final byte[] state) throws Exception {
+        return insertState(state, null, null);
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state, final String flowId)
+            throws Exception {
+        return insertState(state, null, flowId);
+    }
+
+    private String insertState(final byte[] state, final ChunkedByteArrayOutputStream stream, final String flowId)
+            throws Exception {
         final int rnd = random.nextInt();
+        final int shard = chooseShard();
+        if (flowStateIdGenerator != null) {
+            final long key = flowStateIdGenerator.generateLongStateId(null);
+            final String id = toStateId(rnd, shard, Long.toString(key));
+            insertState(new PendingState(id, shard, rnd, Long.valueOf(key), state, stream, getCreated(), flowId));
+            return id;
+        }
+        final PendingState pendingState = new PendingState(null, shard, rnd, null, state, stream, getCreated(),
+                flowId);
         final KeyHolder keyHolder = new GeneratedKeyHolder();
-        jdbcOperations.update(new PreparedStatementCreator() {
+        shards[shard].update(new PreparedStatementCreator() {
             @Override
             public PreparedStatement createPreparedStatement(final Connection con) throws SQLException {
                 final PreparedStatement statement = con.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS);
-                statement.setBytes(1, state);
-                statement.setInt(2, rnd);
+                pendingState.setValues(statement);
                 return statement;
             };
         }, keyHolder);
-        return rnd + (SEPARATOR + keyHolder.getKey().toString());
+        final String id = toStateId(rnd, shard, keyHolder.getKey().toString());
+        recordWrite(id);
+        return id;
+    }
+
+    @Override
+    protected String reserveStateId(final HttpServletRequest request) throws Exception {
+        if (flowStateIdGenerator == null) {
+            return null;
+        }
+        final long id = flowStateIdGenerator.generateLongStateId(null);
+        return toStateId(random.nextInt(), chooseShard(), Long.toString(id));
+    }
+
+    @Override
+    protected void storeSerializedState(final HttpServletRequest request, final String id, final byte[] state,
+            final String flowId) throws Exception {
+        final StateKey stateKey = parseStateId(id);
+        if (stateKey == null) {
+            throw new IllegalArgumentException("Invalid state id " + id);
+        }
+        insertState(new PendingState(id, stateKey.shard, Integer.parseInt(stateKey.random),
+                Long.valueOf(stateKey.key), state, null, getCreated(), flowId));
+    }
+
+    private void insertState(final PendingState pendingState) throws InterruptedException {
+        if (writeQueue != null && pendingState.state != null) {
+            pendingStates.put(pendingState.id, pendingState);
+            if (enqueue(pendingState)) {
+                return;
+            }
+            pendingStates.remove(pendingState.id);
+        }
+        shards[pendingState.shard].update(insertQuery, pendingState);
+        recordWrite(pendingState.id);
+    }
+
+    /**
+     * Queues a state or a purged flow for the writer thread, waiting while
+     * the queue is full. Returns false if the writer thread stopped, and the
+     * caller must perform the write itself.
+     */
+    private boolean enqueue(final PendingState pendingState) throws InterruptedException {
+        while (!stopped) {
+            if (writeQueue.offer(pendingState, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                // The writer might have stopped before reaching it
+                return !stopped || !writeQueue.remove(pendingState);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes all states of the flow from all shards. In write-behind mode,
+     * the states are deleted by the background thread, after the states queued
+     * before have been inserted. Does nothing if no flow id column is set.
+     */
+    @Override
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        if (deleteFlowQuery == null) {
+            return;
+        }
+        if (writeQueue != null) {
+            try {
+                if (enqueue(new PendingState(null, 0, 0, null, null, null, null, flowId))) {
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        deleteFlow(flowId);
+    }
+
+    private void deleteFlow(final String flowId) {
+        for (final JdbcOperations shard: shards) {
+            shard.update(deleteFlowQuery, flowId);
+        }
+    }
+
+    private void recordWrite(final String id) {
+        if (replicationLag == 0 || readJdbcOperations == null && readShardList == null) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        recentWrites.put(id, Long.valueOf(now));
+        recentWriteQueue.add(new RecentWrite(id, now));
+        // Forget the writes older than the replication lag
+        for (;;) {
+            final RecentWrite oldest = recentWriteQueue.peek();
+            if (oldest == null || now - oldest.time < replicationLag) {
+                break;
+            }
+            if (recentWriteQueue.remove(oldest)) {
+                recentWrites.remove(oldest.id, Long.valueOf(oldest.time));
+            }
+        }
+    }
+
+    private boolean isRecentlyWritten(final String id) {
+        final Long time = recentWrites.get(id);
+        return time != null && System.currentTimeMillis() - time.longValue() < replicationLag;
+    }
+
+    private int chooseShard() {
+        if (shards.length == 1) {
+            return 0;
+        }
+        int r = ThreadLocalRandom.current().nextInt(totalShardWeight);
+        for (int i = 0;; ++i) {
+            r -= shardWeights[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+    }
+
+    private String toStateId(final int rnd, final int shard, final String key) {
+        if (shards.length == 1) {
+            return rnd + (SEPARATOR + key);
+        }
+        return rnd + (SEPARATOR + Integer.toString(shard)) + SEPARATOR + key;
+    }
+
+    private StateKey parseStateId(final String id) {
+        final int i = id.indexOf(SEPARATOR);
+        if (i == -1) {
+            return null;
+        }
+        final int j = id.lastIndexOf(SEPARATOR);
+        int shard = 0;
+        if (j != i) {
+            try {
+                shard = Integer.parseInt(id.substring(i + 1, j));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+            if (shard < 0 || shard >= shards.length) {
+                return null;
+            }
+        }
+        return new StateKey(id.substring(0, i), shard, id.substring(j + 1));
+    }
+
+    private void writeQueuedStates() {
+        final List<PendingState> batch = new ArrayList<>(batchSize);
+        for (;;) {
+            PendingState pendingState;
+            try {
+                // Wake up for the retries even if no new state arrives
+                pendingState = retries.isEmpty() ? writeQueue.take() : writeQueue.poll(RETRY_DELAY,
+                        TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                return;
+            }
+            removeFailedStates();
+            batch.addAll(retries);
+            retries.clear();
+            while (pendingState != null) {
+                if (pendingState == stop) {
+                    writeBatch(batch);
+                    return;
+                }
+                if (pendingState.id == null) {
+                    // A purged flow; its states queued so far must be
+                    // inserted before they are deleted
+                    writeBatch(batch);
+                    batch.clear();
+                    discardRetries(pendingState.flowId);
+                    try {
+                        deleteFlow(pendingState.flowId);
+                    } catch (final RuntimeException e) {
+                        log.error("Failed to purge flow " + pendingState.flowId, e);
+                    }
+                    pendingState = writeQueue.poll();
+                    continue;
+                }
+                batch.add(pendingState);
+                if (batch.size() == batchSize) {
+                    break;
+                }
+                pendingState = writeQueue.poll();
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Discards the states of a purged flow that are waiting to be retried.
+     */
+    private void discardRetries(final String flowId) {
+        for (final Iterator<PendingState> it = retries.iterator(); it.hasNext();) {
+            final PendingState pendingState = it.next();
+            if (flowId.equals(pendingState.flowId)) {
+                it.remove();
+                pendingStates.remove(pendingState.id);
+            }
+        }
+    }
+
+    private void writeBatch(final List<PendingState> batch) {
+        if (shards.length == 1) {
+            writeBatch(shards[0], batch);
+            return;
+        }
+        final List<PendingState> shardBatch = new ArrayList<>(batch.size());
+        for (int shard = 0; shard < shards.length; ++shard) {
+            for (final PendingState pendingState: batch) {
+                if (pendingState.shard == shard) {
+                    shardBatch.add(pendingState);
+                }
+            }
+            writeBatch(shards[shard], shardBatch);
+            shardBatch.clear();
+        }
+    }
+
+    private void writeBatch(final JdbcOperations shard, final List<PendingState> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            shard.batchUpdate(insertQuery, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(final PreparedStatement ps, final int i) throws SQLException {
+                    batch.get(i).setValues(ps);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return batch.size();
+                }
+            });
+        } catch (final RuntimeException e) {
+            log.warn("Failed to insert a batch of " + batch.size() + " states, inserting them individually", e);
+            for (final PendingState pendingState: batch) {
+                try {
+                    shard.update(insertQuery, pendingState);
+                    written(pendingState);
+                } catch (final RuntimeException e2) {
+                    if (++pendingState.attempts < MAX_WRITE_ATTEMPTS) {
+                        log.warn("Failed to insert state " + pendingState.id + ", will retry", e2);
+                        retries.add(pendingState);
+                    } else {
+                        failed(pendingState, e2);
+                    }
+                }
+            }
+            return;
+        }
+        for (final PendingState pendingState: batch) {
+            written(pendingState);
+        }
+    }
+
+    /**
+     * Keeps a state that couldn't be inserted pending for a while, so its
+     * retrieval reports the failure.
+     */
+    private void failed(final PendingState pendingState, final RuntimeException e) {
+        log.error("Failed to insert state " + pendingState.id, e);
+        failedWriteCount.incrementAndGet();
+        pendingState.failed = System.currentTimeMillis();
+        pendingState.failure = e;
+        failedStates.add(pendingState);
+        removeFailedStates();
+    }
+
+    /**
+     * Forgets the failed states older than the failure retention, and the
+     * oldest ones beyond the maximum number of pending writes.
+     */
+    private void removeFailedStates() {
+        final long now = System.currentTimeMillis();
+        for (;;) {
+            final PendingState failedState = failedStates.peek();
+            if (failedState == null || now - failedState.failed < failureRetention
+                    && failedStates.size() <= maxPendingWrites) {
+                return;
+            }
+            failedStates.remove();
+            pendingStates.remove(failedState.id, failedState);
+        }
+    }
+
+    private void written(final PendingState pendingState) {
+        recordWrite(pendingState.id);
+        pendingStates.remove(pendingState.id);
+    }
+
+    private Timestamp getCreated() {
+        return stateTimeToLive > 0 ? new Timestamp(System.currentTimeMillis()) : null;
+    }
+
+    private void purgeExpiredStates() {
+        final long expiry = System.currentTimeMillis() - stateTimeToLive;
+        if (dropPartitionStatement != null) {
+            dropExpiredPartitions(expiry);
+            return;
+        }
+        for (final JdbcOperations shard: shards) {
+            purgeExpiredStates(shard, expiry);
+        }
+    }
+
+    private void purgeExpiredStates(final JdbcOperations shard, final long expiry) {
+        // Rows can predate the generator, i.e. with ids assigned by the
+        // database, so the ids alone don't tell whether a row expired
+        final boolean timeOrdered = flowStateIdGenerator instanceof TimeOrderedFlowStateIdGenerator;
+        final String selectExpiredQuery = "SELECT " + idColumnName + " FROM " + tableName + " WHERE "
+                + createdColumnName + "<?" + (timeOrdered ? " AND " + idColumnName + "<?" : "");
+        final String deleteQuery = "DELETE FROM " + tableName + " WHERE " + idColumnName + "=?";
+        for (;;) {
+            final List<Long> ids = shard.query(new PreparedStatementCreator() {
+                @Override
+                public PreparedStatement createPreparedStatement(final Connection con) throws SQLException {
+                    final PreparedStatement statement = con.prepareStatement(selectExpiredQuery);
+                    statement.setMaxRows(purgeBatchSize);
+                    statement.setTimestamp(1, new Timestamp(expiry));
+                    if (timeOrdered) {
+                        statement.setLong(2, TimeOrderedFlowStateIdGenerator.getMinimumId(expiry));
+                    }
+                    return statement;
+                }
+            }, new RowMapper<Long>() {
+                @Override
+                public Long mapRow(final ResultSet rs, final int rowNum) throws SQLException {
+                    return Long.valueOf(rs.getLong(1));
+                }
+            });
+            if (ids.isEmpty()) {
+                return;
+            }
+            shard.batchUpdate(deleteQuery, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(final PreparedStatement ps, final int i) throws SQLException {
+                    ps.setLong(1, ids.get(i).longValue());
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return ids.size();
+                }
+            });
+            if (ids.size() < purgeBatchSize || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private void dropExpiredPartitions(final long expiry) {
+        // Partitions whose end is before the expiry contain only expired states
+        final long lastExpiredPartition = Math.floorDiv(expiry, partitionPeriod) - 1;
+        if (lastDroppedPartition == Long.MIN_VALUE) {
+            // On first run, only drop the partition that expired last;
+            // earlier ones were dropped by earlier runs of the application,
+            // or are not known to belong to this storage
+            lastDroppedPartition = lastExpiredPartition - 1;
+        }
+        final MessageFormat format = new MessageFormat(dropPartitionStatement);
+        for (final Format subformat: format.getFormats()) {
+            if (subformat instanceof DateFormat) {
+                ((DateFormat) subformat).setTimeZone(TimeZone.getTimeZone("UTC"));
+            }
+        }
+        for (long partition = lastDroppedPartition + 1; partition <= lastExpiredPartition; ++partition) {
+            final String statement = format.format(new Object[] { new Date(partition * partitionPeriod) });
+            for (final JdbcOperations shard: shards) {
+                try {
+                    shard.execute(statement);
+                } catch (final RuntimeException e) {
+                    log.debug("Failed to execute " + statement, e);
+                }
+            }
+            lastDroppedPartition = partition;
+        }
+    }
+
+    private class PendingState implements PreparedStatementSetter {
+        final String id;
+        final int shard;
+        final int random;
+        final Long key;
+        final byte[] state;
+        final ChunkedByteArrayOutputStream stream;
+        final Timestamp created;
+        final String flowId;
+        int attempts;
+        long failed;
+        volatile RuntimeException failure;
+
+        PendingState(final String id, final int shard, final int random, final Long key, final byte[] state,
+                final ChunkedByteArrayOutputStream stream, final Timestamp created, final String flowId) {
+            this.id = id;
+            this.shard = shard;
+            this.random = random;
+            this.key = key;
+            this.state = state;
+            this.stream = stream;
+            this.created = created;
+            this.flowId = flowId;
+        }
+
+        @Override
+        public void setValues(final PreparedStatement statement) throws SQLException {
+            int i = 1;
+            if (state != null) {
+                statement.setBytes(i++, state);
+            } else {
+                statement.setBinaryStream(i++, stream.getInputStream(), stream.size());
+            }
+            statement.setInt(i++, random);
+            if (key != null) {
+                statement.setLong(i++, key.longValue());
+            }
+            if (created != null) {
+                statement.setTimestamp(i++, created);
+            }
+            if (flowIdColumnName != null) {
+                statement.setString(i++, flowId);
+            }
+        }
+    }
+
+    private static class StateKey {
+        final String random;
+        final int shard;
+        final String key;
+
+        StateKey(final String random, final int shard, final String key) {
+            this.random = random;
+            this.shard = shard;
+            this.key = key;
+        }
+    }
+
+    private static class RecentWrite {
+        final String id;
+        final long time;
+
+        RecentWrite(final String id, final long time) {
+            this.id = id;
+            this.time = time;
+        }
     }
 }
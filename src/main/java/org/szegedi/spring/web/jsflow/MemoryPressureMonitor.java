@@ -0,0 +1,319 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * <p>
+ * Watches the heap usage, and relieves memory pressure when the heap is
+ * nearly full, so the application serves users with a shallower back button
+ * history instead of running out of memory. The monitor sets a usage
+ * threshold on the heap memory pools, and subscribes to the notifications the
+ * JVM emits when a pool crosses it. The threshold is checked against the
+ * usage after garbage collections where the pool supports it, so that
+ * garbage doesn't trigger it.
+ * </p>
+ * <p>
+ * When the threshold is crossed, the monitor makes the
+ * {@link #setFlowStateStorage(HttpSessionFlowStateStorage) flow state
+ * storage} discard a fraction of the states of every session (see
+ * {@link HttpSessionFlowStateStorage#shedStates(double)}). It then checks the
+ * heap usage after each following garbage collection, discarding states
+ * again while the heap remains above the threshold. Optionally, a
+ * {@link FlowController} responds with 503 (Service Unavailable) to requests
+ * starting a new flow while the heap is above the threshold, while requests
+ * continuing existing flows are still served.
+ * </p>
+ * <p>
+ * Note that the usage thresholds of the memory pools are global to the JVM,
+ * so there should be only one monitor, and no other component setting them.
+ * </p>
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class MemoryPressureMonitor implements InitializingBean, DisposableBean {
+    private static final Log log = LogFactory.getLog(MemoryPressureMonitor.class);
+
+    private HttpSessionFlowStateStorage flowStateStorage;
+    private double usageThreshold = 0.85;
+    private double shedFraction = 0.5;
+    private boolean rejectNewFlows;
+    private long checkInterval = 1000;
+
+    private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+    private final AtomicBoolean underPressure = new AtomicBoolean();
+    private final AtomicLong shedCount = new AtomicLong();
+    private NotificationListener listener;
+    private ScheduledExecutorService executor;
+    private long lastCollectionCount;
+
+    /**
+     * Sets the storage to discard states from when the heap usage crosses the
+     * threshold. If not set, the monitor only rejects new flows (if set to do
+     * so).
+     *
+     * @param flowStateStorage
+     */
+    public void setFlowStateStorage(final HttpSessionFlowStateStorage flowStateStorage) {
+        this.flowStateStorage = flowStateStorage;
+    }
+
+    /**
+     * Sets the heap usage threshold, as a fraction of the maximum size of each
+     * heap memory pool. Defaults to 0.85.
+     *
+     * @param usageThreshold
+     *            the threshold, greater than 0 and less than 1.
+     */
+    public void setUsageThreshold(final double usageThreshold) {
+        if (!(usageThreshold > 0 && usageThreshold < 1)) {
+            throw new IllegalArgumentException("usageThreshold not in (0, 1)");
+        }
+        this.usageThreshold = usageThreshold;
+    }
+
+    /**
+     * Sets the fraction of the states of each session discarded whenever the
+     * heap usage is found above the threshold. Defaults to 0.5.
+     *
+     * @param shedFraction
+     *            the fraction, greater than 0 and at most 1.
+     */
+    public void setShedFraction(final double shedFraction) {
+        if (!(shedFraction > 0 && shedFraction <= 1)) {
+            throw new IllegalArgumentException("shedFraction not in (0, 1]");
+        }
+        this.shedFraction = shedFraction;
+    }
+
+    /**
+     * Sets whether flow controllers reject requests starting new flows while
+     * the heap usage is above the threshold. Defaults to false.
+     *
+     * @param rejectNewFlows
+     */
+    public void setRejectNewFlows(final boolean rejectNewFlows) {
+        this.rejectNewFlows = rejectNewFlows;
+    }
+
+    /**
+     * Sets the delay between two checks for a garbage collection once the
+     * heap usage crossed the threshold. Defaults to 1000 milliseconds.
+     *
+     * @param checkInterval
+     *            the delay in milliseconds.
+     */
+    public void setCheckInterval(final long checkInterval) {
+        if (checkInterval <= 0) {
+            throw new IllegalArgumentException("checkInterval <= 0");
+        }
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Returns true if the heap usage was found above the threshold, and
+     * hasn't been found below it since.
+     *
+     * @return true if the heap is under pressure.
+     */
+    public boolean isUnderPressure() {
+        return underPressure.get();
+    }
+
+    /**
+     * Returns true if requests starting new flows should currently be
+     * rejected.
+     *
+     * @return true if new flows should be rejected.
+     */
+    public boolean isRejectingNewFlows() {
+        return rejectNewFlows && underPressure.get();
+    }
+
+    /**
+     * Returns the number of states discarded to relieve memory pressure since
+     * this monitor was created.
+     *
+     * @return the number of discarded states.
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        for (final MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            final long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || max <= 0) {
+                continue;
+            }
+            final long threshold = (long) (max * usageThreshold);
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(threshold);
+                pools.add(pool);
+            } else if (pool.isUsageThresholdSupported()) {
+                pool.setUsageThreshold(threshold);
+                pools.add(pool);
+            }
+        }
+        if (pools.isEmpty()) {
+            log.warn("No heap memory pool supports usage thresholds; memory pressure won't be detected");
+            return;
+        }
+        if (flowStateStorage != null) {
+            flowStateStorage.trackSessions();
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "MemoryPressureMonitor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        listener = new NotificationListener() {
+            @Override
+            public void handleNotification(final Notification notification, final Object handback) {
+                final String type = notification.getType();
+                if ((MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)
+                        || MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type))
+                        && underPressure.compareAndSet(false, true)) {
+                    log.warn("Heap usage exceeded " + usageThreshold + " of the maximum");
+                    // Don't block the thread delivering the notifications
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            relievePressure();
+                        }
+                    });
+                }
+            }
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    /**
+     * Unsubscribes from the notifications, and clears the usage thresholds.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (listener != null) {
+            ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).removeNotificationListener(listener);
+            listener = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (final MemoryPoolMXBean pool: pools) {
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold(0);
+            } else {
+                pool.setUsageThreshold(0);
+            }
+        }
+        pools.clear();
+        underPressure.set(false);
+    }
+
+    /**
+     * Discards states, and schedules the next check. Only ever invoked from
+     * the executor thread.
+     */
+    private void relievePressure() {
+        if (flowStateStorage != null) {
+            try {
+                final int count = flowStateStorage.shedStates(shedFraction);
+                shedCount.addAndGet(count);
+                log.warn("Discarded " + count + " flow states to relieve memory pressure");
+            } catch (final RuntimeException e) {
+                log.error("Failed to discard flow states", e);
+            }
+        }
+        lastCollectionCount = getCollectionCount();
+        scheduleCheck();
+    }
+
+    private void scheduleCheck() {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkPressure();
+            }
+        }, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for a garbage collection after the states were discarded, then
+     * either discards more states, or ends the pressure.
+     */
+    private void checkPressure() {
+        if (getCollectionCount() == lastCollectionCount) {
+            // The usage after collection is not yet affected by the
+            // discarded states
+            scheduleCheck();
+        } else if (isAboveThreshold()) {
+            relievePressure();
+        } else {
+            underPressure.set(false);
+            log.info("Heap usage is back below " + usageThreshold + " of the maximum");
+        }
+    }
+
+    private boolean isAboveThreshold() {
+        for (final MemoryPoolMXBean pool: pools) {
+            if (pool.isCollectionUsageThresholdSupported()) {
+                final MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null && usage.getUsed() >= pool.getCollectionUsageThreshold()) {
+                    return true;
+                }
+            } else if (pool.getUsage().getUsed() >= pool.getUsageThreshold()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getCollectionCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean collector: ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+}
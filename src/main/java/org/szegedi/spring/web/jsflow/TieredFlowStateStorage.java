@@ -0,0 +1,377 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.szegedi.spring.web.jsflow.support.AbstractFlowStateStorage;
+import org.szegedi.spring.web.jsflow.support.ReservableFlowStateStorage;
+import org.szegedi.spring.web.jsflow.support.StateBlobStore;
+
+/**
+ * <p>
+ * A flow state storage that keeps a bounded in-memory cache of recently stored
+ * and recently retrieved serialized states in front of another, usually
+ * remote, flow state storage (typically a {@link JdbcFlowStateStorage}). States
+ * found in the cache are returned without consulting the backing storage;
+ * states not found in the cache are read through from the backing storage and
+ * cached.
+ * </p>
+ * <p>
+ * By default, stores are written through to the backing storage on the
+ * request thread. In write-behind mode, the state is put into the cache and
+ * written to the backing storage by a background thread, with the id reserved
+ * in the backing storage upfront. This requires a
+ * {@link ReservableFlowStateStorage} as the backing storage, i.e. a
+ * {@link JdbcFlowStateStorage}; if it can't reserve ids as configured (a
+ * {@link JdbcFlowStateStorage} without a flow state id generator), the writes
+ * remain synchronous. When
+ * the number of pending writes reaches its limit, or once the storage was
+ * destroyed, the request thread performs the write itself. States whose write
+ * is pending are never evicted from this storage.
+ * </p>
+ * <p>
+ * Purging a flow discards the flow's states stored through this storage from
+ * the cache, and purges the flow from the backing storage. In write-behind
+ * mode, the purge always follows the writes of the flow's states queued
+ * before it.
+ * </p>
+ * <p>
+ * Note that the serialization and the binary state codec of this storage are
+ * used, and the backing storage's codec is bypassed, as this storage exchanges
+ * already serialized states with it.
+ * </p>
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ */
+public class TieredFlowStateStorage extends AbstractFlowStateStorage implements DisposableBean {
+    private static final Log log = LogFactory.getLog(TieredFlowStateStorage.class);
+    private static final int SEGMENTS = 16;
+
+    private AbstractFlowStateStorage backingStorage;
+    private int maxStates = 1000;
+    private boolean writeBehind;
+    private int maxPendingWrites = 1000;
+    private StateBlobStore blobStore;
+
+    private StateCache cache;
+    private final Map<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor writer;
+
+    /**
+     * Sets the backing storage that states are read from and written to.
+     * Mandatory.
+     *
+     * @param backingStorage
+     */
+    public void setBackingStorage(final AbstractFlowStateStorage backingStorage) {
+        this.backingStorage = backingStorage;
+    }
+
+    /**
+     * Sets the maximum number of states cached in memory. Defaults to 1000.
+     *
+     * @param maxStates
+     */
+    public void setMaxStates(final int maxStates) {
+        if (maxStates <= 0) {
+            throw new IllegalArgumentException("maxStates <= 0");
+        }
+        this.maxStates = maxStates;
+    }
+
+    /**
+     * Sets whether stores are written to the backing storage by a background
+     * thread. Requires a backing storage that is a
+     * {@link ReservableFlowStateStorage}. Defaults to false.
+     *
+     * @param writeBehind
+     */
+    public void setWriteBehind(final boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Sets the maximum number of states queued for writing in write-behind
+     * mode. Defaults to 1000.
+     *
+     * @param maxPendingWrites
+     */
+    public void setMaxPendingWrites(final int maxPendingWrites) {
+        if (maxPendingWrites <= 0) {
+            throw new IllegalArgumentException("maxPendingWrites <= 0");
+        }
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    /**
+     * Sets a store through which identical cached states are shared with
+     * other storages using the same store. If not set, every cached state is
+     * kept in its own copy. A state is shared only while it is cached or its
+     * write is pending; the store doesn't keep states evicted from the cache.
+     *
+     * @param blobStore
+     * @since 1.4
+     */
+    public void setBlobStore(final StateBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        super.afterPropertiesSet();
+        if (backingStorage == null) {
+            throw new IllegalArgumentException("backingStorage must be set");
+        }
+        if (writeBehind && !(backingStorage instanceof ReservableFlowStateStorage)) {
+            throw new IllegalArgumentException("writeBehind requires a backingStorage that can reserve state ids");
+        }
+        cache = new StateCache(maxStates);
+        if (writeBehind) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(maxPendingWrites), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            final Thread t = new Thread(r, "TieredFlowStateStorage writer");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    }, new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                            // Unlike CallerRunsPolicy, also runs the task
+                            // after shutdown instead of dropping it
+                            r.run();
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Waits for the pending writes to complete and stops the background writer.
+     */
+    @Override
+    public void destroy() throws Exception {
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected byte[] getSerializedState(final HttpServletRequest request, final String id) throws Exception {
+        final PendingWrite pendingWrite = pendingWrites.get(id);
+        if (pendingWrite != null) {
+            return pendingWrite.state;
+        }
+        final CachedState cachedState = cache.get(id);
+        if (cachedState != null) {
+            return cachedState.state;
+        }
+        final byte[] state = getSerializedState(backingStorage, request, id);
+        if (state != null) {
+            // The flow id of a state read through is not known
+            cache.put(id, new CachedState(intern(state), null));
+        }
+        return state;
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state) throws Exception {
+        return storeSerializedState(request, state, null);
+    }
+
+    @Override
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state, final String flowId)
+            throws Exception {
+        // The cache and the pending write share the interned copy
+        final byte[] interned = intern(state);
+        if (writer != null) {
+            final ReservableFlowStateStorage reservableStorage = (ReservableFlowStateStorage) backingStorage;
+            final String id = reserveStateId(reservableStorage, request);
+            if (id != null) {
+                final PendingWrite pendingWrite = new PendingWrite(interned, flowId, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            storeSerializedState(reservableStorage, null, id, interned, flowId);
+                        } catch (final Exception e) {
+                            log.error("Failed to write state " + id, e);
+                        } finally {
+                            pendingWrites.remove(id);
+                        }
+                    }
+                });
+                pendingWrites.put(id, pendingWrite);
+                cache.put(id, new CachedState(interned, flowId));
+                writer.execute(pendingWrite);
+                return id;
+            }
+        }
+        final String id = storeSerializedState(backingStorage, request, interned, flowId);
+        cache.put(id, new CachedState(interned, flowId));
+        return id;
+    }
+
+    @Override
+    public String getFlowId(final HttpServletRequest request, final String id) {
+        final PendingWrite pendingWrite = pendingWrites.get(id);
+        if (pendingWrite != null) {
+            return pendingWrite.flowId;
+        }
+        final CachedState cachedState = cache.get(id);
+        if (cachedState != null && cachedState.flowId != null) {
+            return cachedState.flowId;
+        }
+        return backingStorage.getFlowId(request, id);
+    }
+
+    private byte[] intern(final byte[] state) {
+        return blobStore == null ? state : blobStore.intern(state);
+    }
+
+    /**
+     * Discards the cached states of the flow, and purges the flow from the
+     * backing storage. In write-behind mode, the backing storage is purged by
+     * the background thread after it wrote the flow's pending states. When
+     * the queue is full, the request thread waits for these writes and then
+     * purges the flow itself.
+     */
+    @Override
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        cache.removeFlow(flowId);
+        if (writer == null) {
+            backingStorage.purgeFlow(request, flowId);
+            return;
+        }
+        // Only the writes queued before the purge; waiting for a later one
+        // on the writer thread would never end
+        final List<PendingWrite> flowWrites = new ArrayList<>();
+        for (final PendingWrite pendingWrite: pendingWrites.values()) {
+            if (flowId.equals(pendingWrite.flowId)) {
+                flowWrites.add(pendingWrite);
+            }
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (final PendingWrite pendingWrite: flowWrites) {
+                        pendingWrite.get();
+                    }
+                    backingStorage.purgeFlow(null, flowId);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.error("Interrupted before purging flow " + flowId, e);
+                } catch (final ExecutionException | RuntimeException e) {
+                    log.error("Failed to purge flow " + flowId, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * A state queued for writing to the backing storage.
+     */
+    private static class PendingWrite extends FutureTask<Void> {
+        final byte[] state;
+        final String flowId;
+
+        PendingWrite(final byte[] state, final String flowId, final Runnable write) {
+            super(write, null);
+            this.state = state;
+            this.flowId = flowId;
+        }
+    }
+
+    private static class CachedState {
+        final byte[] state;
+        final String flowId;
+
+        CachedState(final byte[] state, final String flowId) {
+            this.state = state;
+            this.flowId = flowId;
+        }
+    }
+
+    /**
+     * A bounded LRU cache split into independently locked segments.
+     */
+    private static class StateCache {
+        private final List<Map<String, CachedState>> segments = new ArrayList<>(SEGMENTS);
+
+        StateCache(final int maxStates) {
+            final int segmentSize = Math.max(1, maxStates / SEGMENTS);
+            for (int i = 0; i < SEGMENTS; ++i) {
+                segments.add(new LinkedHashMap<String, CachedState>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(final Map.Entry<String, CachedState> eldest) {
+                        return size() > segmentSize;
+                    }
+                });
+            }
+        }
+
+        CachedState get(final String id) {
+            final Map<String, CachedState> segment = segmentFor(id);
+            synchronized (segment) {
+                return segment.get(id);
+            }
+        }
+
+        void put(final String id, final CachedState state) {
+            final Map<String, CachedState> segment = segmentFor(id);
+            synchronized (segment) {
+                segment.put(id, state);
+            }
+        }
+
+        void removeFlow(final String flowId) {
+            for (final Map<String, CachedState> segment: segments) {
+                synchronized (segment) {
+                    for (final Iterator<CachedState> it = segment.values().iterator(); it.hasNext();) {
+                        if (flowId.equals(it.next().flowId)) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }
+
+        private Map<String, CachedState> segmentFor(final String id) {
+            final int h = id.hashCode();
+            return segments.get((h ^ (h >>> 16)) & (SEGMENTS - 1));
+        }
+    }
+}
@@ -15,6 +15,8 @@
 */
 package org.szegedi.spring.web.jsflow.codec;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import org.szegedi.spring.web.jsflow.codec.support.OneWayCodec;
 
@@ -33,12 +35,13 @@ import org.szegedi.spring.web.jsflow.codec.support.OneWayCodec;
  * of the encryption. Also consider wrapping this codec into a
  * {@link org.szegedi.spring.web.jsflow.codec.PooledCodec} if you use either
  * confidentiality or integrity, as their coding operations can have high
- * initialization overhead.
+ * initialization overhead. The composite codec can encode and decode as a
+ * stream if all of its component codecs can.
  *
  * @author Attila Szegedi
  * @version $Id$
  */
-public class CompositeCodec implements BinaryStateCodec {
+public class CompositeCodec implements StreamingStateCodec {
     private BinaryStateCodec[] codecs;
 
     /**
@@ -73,6 +76,35 @@ public class CompositeCodec implements BinaryStateCodec {
         return compositeOneWayCodec(oneways);
     }
 
+    @Override
+    public InputStream createDecoderStream(InputStream in) throws Exception {
+        for (int i = codecs.length; i-- > 0;) {
+            if (!(codecs[i] instanceof StreamingStateCodec)) {
+                return null;
+            }
+            in = ((StreamingStateCodec) codecs[i]).createDecoderStream(in);
+            if (in == null) {
+                return null;
+            }
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream createEncoderStream(OutputStream out) throws Exception {
+        // The last codec encodes last, so its stream is the innermost one
+        for (int i = codecs.length; i-- > 0;) {
+            if (!(codecs[i] instanceof StreamingStateCodec)) {
+                return null;
+            }
+            out = ((StreamingStateCodec) codecs[i]).createEncoderStream(out);
+            if (out == null) {
+                return null;
+            }
+        }
+        return out;
+    }
+
     private static OneWayCodec compositeOneWayCodec(final OneWayCodec[] codecs) {
         return new OneWayCodec() {
             @Override
@@ -17,6 +17,9 @@ package org.szegedi.spring.web.jsflow.codec;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
@@ -28,12 +31,13 @@ import org.szegedi.spring.web.jsflow.codec.support.OneWayCodec;
  * decompress it upon decoding. In particular useful as part of a
  * {@link org.szegedi.spring.web.jsflow.codec.CompositeCodec}, in front of a
  * {@link org.szegedi.spring.web.jsflow.codec.ConfidentialityCodec}, as
- * compression improves the security of the encryption.
+ * compression improves the security of the encryption. It can also compress
+ * and decompress as a stream.
  *
  * @author Attila Szegedi
  * @version $Id$
  */
-public class CompressionCodec implements BinaryStateCodec {
+public class CompressionCodec implements StreamingStateCodec {
     private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
     /**
@@ -87,4 +91,32 @@ public class CompressionCodec implements BinaryStateCodec {
             }
         };
     }
+
+    @Override
+    public InputStream createDecoderStream(final InputStream in) throws Exception {
+        return new InflaterInputStream(in, new Inflater(), 4096) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    @Override
+    public OutputStream createEncoderStream(final OutputStream out) throws Exception {
+        return new DeflaterOutputStream(out, new Deflater(compressionLevel), 4096) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
 }
@@ -15,6 +15,8 @@
 */
 package org.szegedi.spring.web.jsflow.codec;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.Reference;
 import org.szegedi.spring.support.SoftPooledFactory;
 import org.szegedi.spring.web.jsflow.codec.support.OneWayCodec;
@@ -30,12 +32,13 @@ import org.szegedi.spring.web.jsflow.codec.support.OneWayCodec;
  * one of these are combined into a
  * {@link org.szegedi.spring.web.jsflow.codec.CompositeCodec}, it is a good idea
  * to wrap the composite codec with a pooled codec, instead of wrapping the
- * individual component codecs.
+ * individual component codecs. Streams are created directly by the wrapped
+ * codec, without pooling, if it can encode and decode as a stream.
  * 
  * @author Attila Szegedi
  * @version $Id$
  */
-public class PooledCodec implements BinaryStateCodec {
+public class PooledCodec implements StreamingStateCodec {
     private BinaryStateCodec binaryStateCodec;
 
     public void setBinaryStateCodec(final BinaryStateCodec binaryStateCodec) {
@@ -76,6 +79,22 @@ public class PooledCodec implements BinaryStateCodec {
         };
     }
 
+    @Override
+    public InputStream createDecoderStream(final InputStream in) throws Exception {
+        if (binaryStateCodec instanceof StreamingStateCodec) {
+            return ((StreamingStateCodec) binaryStateCodec).createDecoderStream(in);
+        }
+        return null;
+    }
+
+    @Override
+    public OutputStream createEncoderStream(final OutputStream out) throws Exception {
+        if (binaryStateCodec instanceof StreamingStateCodec) {
+            return ((StreamingStateCodec) binaryStateCodec).createEncoderStream(out);
+        }
+        return null;
+    }
+
     private static byte[] transcode(final SoftPooledFactory<OneWayCodec> factory, final byte[] data) throws Exception {
         for (;;) {
             final Reference<OneWayCodec> ref = factory.get();
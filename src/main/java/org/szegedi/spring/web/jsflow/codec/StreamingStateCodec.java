@@ -0,0 +1,55 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.codec;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A binary state codec that can also transform the state while it is being
+ * written or read, so that the state never needs to be held in memory in a
+ * single byte array. Codecs that must see the whole state before producing any
+ * output (i.e. an {@link IntegrityCodec}, which must verify the signature
+ * before the state can be trusted) don't implement this interface.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public interface StreamingStateCodec extends BinaryStateCodec {
+    /**
+     * Creates a stream that decodes the data read from another stream.
+     *
+     * @param in
+     *            the stream with the encoded data
+     * @return the stream with the decoded data, or null if this codec can't
+     *         decode as a stream.
+     * @throws Exception
+     */
+    public InputStream createDecoderStream(InputStream in) throws Exception;
+
+    /**
+     * Creates a stream that encodes the data written to it into another
+     * stream. Closing the returned stream closes the other stream.
+     *
+     * @param out
+     *            the stream receiving the encoded data
+     * @return the stream accepting the data to encode, or null if this codec
+     *         can't encode as a stream.
+     * @throws Exception
+     */
+    public OutputStream createEncoderStream(OutputStream out) throws Exception;
+}
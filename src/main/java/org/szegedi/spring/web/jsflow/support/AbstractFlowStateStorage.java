@@ -15,11 +15,15 @@
 */
 package org.szegedi.spring.web.jsflow.support;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import javax.servlet.http.HttpServletRequest;
 import org.mozilla.javascript.NativeContinuation;
+import org.springframework.util.StreamUtils;
 import org.szegedi.spring.web.jsflow.FlowStateStorage;
 import org.szegedi.spring.web.jsflow.FlowStateStorageException;
 import org.szegedi.spring.web.jsflow.codec.BinaryStateCodec;
+import org.szegedi.spring.web.jsflow.codec.StreamingStateCodec;
 
 /**
  * <p>
@@ -101,17 +105,47 @@ public abstract class AbstractFlowStateStorage extends FlowStateSerializer imple
 
     @Override
     public String storeState(final HttpServletRequest request, final NativeContinuation state) {
+        return storeState(request, state, null);
+    }
+
+    @Override
+    public String storeState(final HttpServletRequest request, final NativeContinuation state, final String flowId) {
         try {
-            byte[] b = serializeContinuation(state, null, null);
-            if (binaryStateCodec != null) {
-                b = binaryStateCodec.createEncoder().code(b);
-            }
-            return storeSerializedState(request, b);
+            return storeSerializedState(request, serializeState(state), flowId);
         } catch (final Exception e) {
             throw new FlowStateStorageException("Failed to store state", e);
         }
     }
 
+    /**
+     * Serializes a state and encodes it with the binary state codec, in the
+     * form passed to
+     * {@link #storeSerializedState(HttpServletRequest, byte[], String)}.
+     *
+     * @param state
+     *            the state
+     * @return the encoded serialized state
+     * @throws Exception
+     * @since 1.4
+     */
+    protected byte[] serializeState(final NativeContinuation state) throws Exception {
+        return encodeState(serializeContinuation(state, null, null));
+    }
+
+    /**
+     * Encodes a serialized state with the binary state codec.
+     *
+     * @param serialized
+     *            the serialized state
+     * @return the encoded serialized state, or the serialized state itself if
+     *         no codec is set
+     * @throws Exception
+     * @since 1.4
+     */
+    protected byte[] encodeState(final byte[] serialized) throws Exception {
+        return binaryStateCodec == null ? serialized : binaryStateCodec.createEncoder().code(serialized);
+    }
+
     /**
      * Implement in subclasses to store the serialized state.
      * 
@@ -124,4 +158,117 @@ public abstract class AbstractFlowStateStorage extends FlowStateSerializer imple
      * @throws Exception
      */
     protected abstract String storeSerializedState(HttpServletRequest request, byte[] state) throws Exception;
+
+    /**
+     * Override in subclasses that can purge the states of a flow to store the
+     * serialized state along with the id of its flow. The default
+     * implementation ignores the flow id and invokes
+     * {@link #storeSerializedState(HttpServletRequest, byte[])}.
+     *
+     * @param request
+     *            the HTTP request that triggered the store operation.
+     * @param state
+     *            byte array representing the serialized state
+     * @param flowId
+     *            the id of the flow the state belongs to. Can be null.
+     * @return the id of the state
+     * @throws Exception
+     * @since 1.4
+     */
+    protected String storeSerializedState(final HttpServletRequest request, final byte[] state, final String flowId)
+            throws Exception {
+        return storeSerializedState(request, state);
+    }
+
+    /**
+     * Reads a state from a stream. Can be used by subclasses that can stream
+     * the serialized states from their underlying storage. If the binary state
+     * codec is a {@link StreamingStateCodec}, the state is decoded and
+     * deserialized as it is read, otherwise it is read fully first.
+     *
+     * @param in
+     *            the stream containing the encoded serialized state.
+     * @return the state
+     * @throws Exception
+     * @since 1.4
+     */
+    protected NativeContinuation readState(final InputStream in) throws Exception {
+        if (binaryStateCodec == null) {
+            return deserializeContinuation(in, null);
+        }
+        if (binaryStateCodec instanceof StreamingStateCodec) {
+            final InputStream din = ((StreamingStateCodec) binaryStateCodec).createDecoderStream(in);
+            if (din != null) {
+                return deserializeContinuation(din, null);
+            }
+        }
+        return deserializeContinuation(binaryStateCodec.createDecoder().code(StreamUtils.copyToByteArray(in)), null);
+    }
+
+    /**
+     * Serializes and encodes a state into a chunked buffer. Can be used by
+     * subclasses that can stream the serialized states into their underlying
+     * storage. If the binary state codec is a {@link StreamingStateCodec}, the
+     * state is encoded as it is serialized, and the serialized state is never
+     * held in a single array.
+     *
+     * @param state
+     *            the state
+     * @return the buffer containing the encoded serialized state
+     * @throws Exception
+     * @since 1.4
+     */
+    protected ChunkedByteArrayOutputStream writeState(final NativeContinuation state) throws Exception {
+        final ChunkedByteArrayOutputStream out = new ChunkedByteArrayOutputStream();
+        if (binaryStateCodec == null) {
+            serializeContinuation(state, null, null, out);
+            return out;
+        }
+        if (binaryStateCodec instanceof StreamingStateCodec) {
+            final OutputStream eout = ((StreamingStateCodec) binaryStateCodec).createEncoderStream(out);
+            if (eout != null) {
+                serializeContinuation(state, null, null, eout);
+                return out;
+            }
+        }
+        out.write(binaryStateCodec.createEncoder().code(serializeContinuation(state, null, null)));
+        return out;
+    }
+
+    /**
+     * Allows subclasses that decorate another storage to retrieve a serialized
+     * state from it.
+     */
+    protected static byte[] getSerializedState(final AbstractFlowStateStorage storage,
+            final HttpServletRequest request, final String id) throws Exception {
+        return storage.getSerializedState(request, id);
+    }
+
+    /**
+     * Allows subclasses that decorate another storage to store a serialized
+     * state into it.
+     */
+    protected static String storeSerializedState(final AbstractFlowStateStorage storage,
+            final HttpServletRequest request, final byte[] state, final String flowId) throws Exception {
+        return storage.storeSerializedState(request, state, flowId);
+    }
+
+    /**
+     * Allows subclasses that decorate another storage to reserve a state id in
+     * it.
+     */
+    protected static String reserveStateId(final ReservableFlowStateStorage storage, final HttpServletRequest request)
+            throws Exception {
+        return storage.reserveStateId(request);
+    }
+
+    /**
+     * Allows subclasses that decorate another storage to store a serialized
+     * state into it under a previously reserved id.
+     */
+    protected static void storeSerializedState(final ReservableFlowStateStorage storage,
+            final HttpServletRequest request, final String id, final byte[] state, final String flowId)
+            throws Exception {
+        storage.storeSerializedState(request, id, state, flowId);
+    }
 }
@@ -0,0 +1,122 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream that collects the written data in a list of fixed size
+ * chunks instead of a single growing array. Unlike with a
+ * {@link java.io.ByteArrayOutputStream}, the data is never copied while it's
+ * being written, and it is never required to fit into one contiguous array.
+ * The written data can be read back with {@link #getInputStream()}.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class ChunkedByteArrayOutputStream extends OutputStream {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private byte[] current;
+    private int currentLength = CHUNK_SIZE;
+    private long size;
+
+    @Override
+    public void write(final int b) {
+        if (currentLength == CHUNK_SIZE) {
+            nextChunk();
+        }
+        current[currentLength++] = (byte) b;
+        ++size;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) {
+        size += len;
+        while (len > 0) {
+            if (currentLength == CHUNK_SIZE) {
+                nextChunk();
+            }
+            final int n = Math.min(len, CHUNK_SIZE - currentLength);
+            System.arraycopy(b, off, current, currentLength, n);
+            currentLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void nextChunk() {
+        current = new byte[CHUNK_SIZE];
+        chunks.add(current);
+        currentLength = 0;
+    }
+
+    /**
+     * Returns the number of bytes written to this stream.
+     *
+     * @return the number of bytes written to this stream.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns a stream that reads the bytes written to this stream so far.
+     *
+     * @return a stream that reads the bytes written to this stream.
+     */
+    public InputStream getInputStream() {
+        final long length = size;
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                if (position == length) {
+                    return -1;
+                }
+                final int b = chunks.get((int) (position / CHUNK_SIZE))[(int) (position % CHUNK_SIZE)];
+                ++position;
+                return b & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position == length) {
+                    return -1;
+                }
+                final int offset = (int) (position % CHUNK_SIZE);
+                final int n = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), length - position);
+                System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), offset, b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, length - position);
+            }
+        };
+    }
+}
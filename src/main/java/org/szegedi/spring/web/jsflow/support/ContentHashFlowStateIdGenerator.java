@@ -0,0 +1,147 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Random;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.mozilla.javascript.NativeContinuation;
+
+/**
+ * A flow state id generator that derives the id of a state from its
+ * serialized form, using a keyed hash (HMAC). Identical states get identical
+ * ids, so a storage can keep a single copy of them: i.e. reloading a page, or
+ * entering the first step of a flow again, produces a state byte-identical to
+ * one stored before. As the hash is keyed, the ids can't be predicted from
+ * the states' contents. The ids are generated from the serialized states
+ * using {@link #generateLongStateId(byte[])} by storages that support it, i.e.
+ * the {@link org.szegedi.spring.web.jsflow.HttpSessionFlowStateStorage}.
+ * Other storages generate the ids from the continuations, which yields random
+ * ids, as the continuations aren't serialized at that point.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class ContentHashFlowStateIdGenerator implements FlowStateIdGenerator {
+    private String algorithm = "HmacSHA256";
+    private byte[] key;
+    private SecretKeySpec keySpec;
+    private volatile ThreadLocal<Mac> macs = createMacs();
+    private final Random random = new SecureRandom();
+
+    /**
+     * Sets the name of the MAC algorithm. Defaults to "HmacSHA256".
+     *
+     * @param algorithm
+     */
+    public void setAlgorithm(final String algorithm) {
+        this.algorithm = algorithm;
+        resetKeySpec();
+    }
+
+    /**
+     * Sets the key of the hash. If not set, a random key is generated. Set
+     * the same key on all nodes of a cluster for identical states to have
+     * identical ids on all nodes.
+     *
+     * @param key
+     */
+    public void setKey(final byte[] key) {
+        this.key = key.clone();
+        resetKeySpec();
+    }
+
+    /**
+     * Generates the id of a serialized state.
+     *
+     * @param serializedState
+     *            the serialized state
+     * @return the id. Never negative.
+     */
+    public long generateLongStateId(final byte[] serializedState) {
+        final byte[] hash = macs.get().doFinal(serializedState);
+        long id = 0;
+        for (int i = 0; i < 8; ++i) {
+            id = (id << 8) | (hash[i] & 0xff);
+        }
+        return id & Long.MAX_VALUE;
+    }
+
+    private ThreadLocal<Mac> createMacs() {
+        // Creating and initializing a Mac for every state is expensive. Mac
+        // is a JDK class, so the threads' copies don't pin the class loader.
+        return new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    final Mac mac = Mac.getInstance(algorithm);
+                    mac.init(getKeySpec());
+                    return mac;
+                } catch (final GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    private synchronized void resetKeySpec() {
+        keySpec = null;
+        macs = createMacs();
+    }
+
+    private synchronized SecretKeySpec getKeySpec() {
+        if (keySpec == null) {
+            if (key == null) {
+                key = new byte[32];
+                new SecureRandom().nextBytes(key);
+            }
+            keySpec = new SecretKeySpec(key, algorithm);
+        }
+        return keySpec;
+    }
+
+    /**
+     * Generates a random id, as the serialized form of the state isn't
+     * available.
+     */
+    @Override
+    public Long generateStateId(final NativeContinuation state) {
+        return Long.valueOf(generateLongStateId(state));
+    }
+
+    /**
+     * Generates a random id, as the serialized form of the state isn't
+     * available.
+     */
+    @Override
+    public long generateLongStateId(final NativeContinuation state) {
+        return random.nextLong() & Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns false, as the ids generated from the continuations are random.
+     * The ids generated from the serialized states are the same for identical
+     * states, and storages supporting them treat an existing id as an
+     * identical state.
+     */
+    @Override
+    public boolean dependsOnContinuation() {
+        return false;
+    }
+}
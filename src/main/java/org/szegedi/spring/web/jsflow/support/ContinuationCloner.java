@@ -0,0 +1,471 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.locks.StampedLock;
+import org.mozilla.javascript.ConsString;
+import org.mozilla.javascript.IdScriptableObject;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.ObjArray;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.UintMap;
+
+/**
+ * Creates deep copies of object graphs in memory, producing the same copy as
+ * a serialization round trip would, at a fraction of its cost. Designed for
+ * graphs of Rhino continuations: objects the serializer would replace with
+ * stubs (library objects, functions, application context beans) are shared
+ * by reference instead of being copied, as are immutable objects. Fields of
+ * plain serializable objects are copied reflectively, with transient fields
+ * reset to their default values just as deserialization would do. Classes
+ * taking part in their own serialization in any way (with readObject,
+ * writeObject, readObjectNoData, readResolve or writeReplace methods, with
+ * serialPersistentFields, or by being Externalizable) are only handled when
+ * they are explicitly known to be safe to copy; common JDK collections are
+ * rebuilt from their copied elements. When a graph contains an object the
+ * cloner can't handle, cloning fails with a
+ * {@link CloneNotSupportedException}, and the caller is expected to fall
+ * back to serialization.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+class ContinuationCloner {
+    /**
+     * Doesn't keep the classes, and with them their class loaders, from being
+     * unloaded, unlike a map keyed by the classes would.
+     */
+    private static final ClassValue<ClassInfo> classInfos = new ClassValue<ClassInfo>() {
+        @Override
+        protected ClassInfo computeValue(final Class<?> clazz) {
+            return createClassInfo(clazz);
+        }
+    };
+    private static final ClassInfo SHARED = new ClassInfo(Kind.SHARED, null, null);
+    private static final ClassInfo UNSUPPORTED = new ClassInfo(Kind.UNSUPPORTED, null, null);
+    private static final ClassInfo ARRAY = new ClassInfo(Kind.ARRAY, null, null);
+    private static final ClassInfo MAP = new ClassInfo(Kind.MAP, null, null);
+    private static final ClassInfo COLLECTION = new ClassInfo(Kind.COLLECTION, null, null);
+    private static final ClassInfo DATE = new ClassInfo(Kind.DATE, null, null);
+
+    /**
+     * Immutable classes, and classes whose instances are singletons resolved
+     * on deserialization.
+     */
+    private static final Set<Class<?>> SHARED_CLASSES = new HashSet<>(Arrays.<Class<?>> asList(String.class,
+            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class,
+            Double.class, BigInteger.class, BigDecimal.class, Class.class, Locale.class, UUID.class,
+            ConsString.class));
+    private static final Set<String> SHARED_CLASS_NAMES = new HashSet<>(Arrays.asList(
+            "org.mozilla.javascript.InterpreterData", "org.mozilla.javascript.JavaMembers",
+            "org.mozilla.javascript.MemberBox", "org.mozilla.javascript.NativeJavaPackage",
+            "org.mozilla.javascript.SymbolKey", "org.mozilla.javascript.Undefined",
+            "org.mozilla.javascript.UniqueTag"));
+
+    /**
+     * Classes with custom serialization logic that only writes their fields
+     * and restores the transient state of the object as it was, so copying
+     * all their fields is equivalent to a serialization round trip.
+     */
+    private static final Set<Class<?>> COPIED_CLASSES = new HashSet<>(Arrays.<Class<?>> asList(
+            ScriptableObject.class, IdScriptableObject.class, NativeJavaObject.class, ObjArray.class,
+            UintMap.class));
+    private static final Set<String> COPIED_CLASS_NAMES = new HashSet<>(Arrays.asList(
+            "org.mozilla.javascript.ScriptableObject$Slot", "org.mozilla.javascript.FunctionObject",
+            "org.mozilla.javascript.NativeCollectionIterator"));
+    /**
+     * Non-serializable containers of object properties, restored by
+     * {@link ScriptableObject}'s custom deserialization.
+     */
+    private static final Set<String> SLOT_MAP_CLASS_NAMES = new HashSet<>(Arrays.asList(
+            "org.mozilla.javascript.SlotMapContainer", "org.mozilla.javascript.ThreadSafeSlotMapContainer",
+            "org.mozilla.javascript.EmbeddedSlotMap", "org.mozilla.javascript.HashSlotMap"));
+
+    private static final Set<Class<?>> MAP_CLASSES = new HashSet<>(Arrays.<Class<?>> asList(HashMap.class,
+            LinkedHashMap.class, Hashtable.class, IdentityHashMap.class));
+    private static final Set<Class<?>> COLLECTION_CLASSES = new HashSet<>(Arrays.<Class<?>> asList(
+            ArrayList.class, LinkedList.class, ArrayDeque.class, Vector.class, HashSet.class,
+            LinkedHashSet.class));
+
+    /**
+     * Serialization instantiates a class by running only the no-arg
+     * constructor of its first non-serializable superclass. The only way to
+     * do the same is the JRE-internal sun.reflect.ReflectionFactory, so it is
+     * looked up reflectively, instead of being linked against; on a JRE that
+     * doesn't have it, copying plain serializable objects is unsupported, and
+     * the callers fall back to serialization.
+     */
+    private static final Object reflectionFactory;
+    private static final Method newConstructorForSerialization;
+
+    static {
+        Object factory;
+        Method method;
+        try {
+            final Class<?> factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+            factory = factoryClass.getMethod("getReflectionFactory").invoke(null);
+            method = factoryClass.getMethod("newConstructorForSerialization", Class.class, Constructor.class);
+        } catch (final Exception e) {
+            factory = null;
+            method = null;
+        }
+        reflectionFactory = factory;
+        newConstructorForSerialization = method;
+    }
+
+    private enum Kind {
+        SHARED, UNSUPPORTED, ARRAY, MAP, COLLECTION, DATE, NEW, OBJECT
+    }
+
+    /**
+     * Decides which objects are shared by reference between the original and
+     * the copy.
+     */
+    interface SharedObjects {
+        boolean isShared(Object obj) throws IOException;
+    }
+
+    private final SharedObjects sharedObjects;
+    private final Map<Object, Object> copies = new IdentityHashMap<>();
+    private final List<Object> pending = new ArrayList<>();
+    private final List<Object> hashed = new ArrayList<>();
+
+    private ContinuationCloner(final SharedObjects sharedObjects) {
+        this.sharedObjects = sharedObjects;
+    }
+
+    /**
+     * Creates a deep copy of an object graph.
+     *
+     * @param obj
+     *            the root of the graph
+     * @param sharedObjects
+     *            decides which objects are shared by reference
+     * @return the copy of the root
+     * @throws CloneNotSupportedException
+     *             if the graph contains objects that can't be copied
+     * @throws IOException
+     *             if thrown by the shared objects
+     */
+    static Object cloneGraph(final Object obj, final SharedObjects sharedObjects)
+            throws CloneNotSupportedException, IOException {
+        final ContinuationCloner cloner = new ContinuationCloner(sharedObjects);
+        final Object copy = cloner.copyOf(obj);
+        cloner.copyPending();
+        return copy;
+    }
+
+    /**
+     * Returns the copy of an object, creating an empty copy to be filled
+     * later if the object wasn't seen yet. Filling copies from a work list
+     * instead of recursively keeps long chains (i.e. of call frames) from
+     * overflowing the stack.
+     */
+    private Object copyOf(final Object obj) throws CloneNotSupportedException, IOException {
+        if (obj == null) {
+            return null;
+        }
+        Object copy = copies.get(obj);
+        if (copy != null) {
+            return copy;
+        }
+        final ClassInfo info = getClassInfo(obj.getClass());
+        switch (info.kind) {
+            case SHARED: {
+                copy = obj;
+                break;
+            }
+            case UNSUPPORTED: {
+                throw new CloneNotSupportedException(obj.getClass().getName());
+            }
+            default: {
+                if (sharedObjects.isShared(obj)) {
+                    copy = obj;
+                } else {
+                    copy = newEmptyCopy(obj, info);
+                    pending.add(obj);
+                    pending.add(copy);
+                }
+            }
+        }
+        copies.put(obj, copy);
+        return copy;
+    }
+
+    private static Object newEmptyCopy(final Object obj, final ClassInfo info) throws CloneNotSupportedException {
+        switch (info.kind) {
+            case ARRAY: {
+                if (obj.getClass().getComponentType().isPrimitive()) {
+                    return primitiveArrayClone(obj);
+                }
+                return Array.newInstance(obj.getClass().getComponentType(), Array.getLength(obj));
+            }
+            case DATE: {
+                return ((Date) obj).clone();
+            }
+            default: {
+                try {
+                    return info.constructor.newInstance();
+                } catch (final Exception e) {
+                    final CloneNotSupportedException ce = new CloneNotSupportedException(obj.getClass().getName());
+                    ce.initCause(e);
+                    throw ce;
+                }
+            }
+        }
+    }
+
+    private void copyPending() throws CloneNotSupportedException, IOException {
+        while (!pending.isEmpty()) {
+            final Object copy = pending.remove(pending.size() - 1);
+            final Object obj = pending.remove(pending.size() - 1);
+            final ClassInfo info = getClassInfo(obj.getClass());
+            switch (info.kind) {
+                case ARRAY: {
+                    if (obj instanceof Object[]) {
+                        final Object[] array = (Object[]) obj;
+                        final Object[] arrayCopy = (Object[]) copy;
+                        for (int i = 0; i < array.length; ++i) {
+                            arrayCopy[i] = copyOf(array[i]);
+                        }
+                    }
+                    break;
+                }
+                case MAP:
+                case COLLECTION: {
+                    // Populated last, when the elements' hash codes are final
+                    hashed.add(obj);
+                    hashed.add(copy);
+                    for (final Object element: info.kind == Kind.MAP ? mapElements((Map<?, ?>) obj)
+                            : (Collection<?>) obj) {
+                        copyOf(element);
+                    }
+                    break;
+                }
+                case OBJECT: {
+                    try {
+                        for (final Field field: info.fields) {
+                            if (field.getType().isPrimitive()) {
+                                field.set(copy, field.get(obj));
+                            } else {
+                                field.set(copy, copyOf(field.get(obj)));
+                            }
+                        }
+                    } catch (final IllegalAccessException e) {
+                        final CloneNotSupportedException ce = new CloneNotSupportedException(obj.getClass()
+                                .getName());
+                        ce.initCause(e);
+                        throw ce;
+                    }
+                    break;
+                }
+                default: {
+                    break;
+                }
+            }
+        }
+        for (int i = hashed.size(); i > 0; i -= 2) {
+            final Object obj = hashed.get(i - 2);
+            final Object copy = hashed.get(i - 1);
+            // The copies are instances of the same classes as the originals
+            if (obj instanceof Map) {
+                @SuppressWarnings("unchecked")
+                final Map<Object, Object> mapCopy = (Map<Object, Object>) copy;
+                for (final Map.Entry<?, ?> entry: ((Map<?, ?>) obj).entrySet()) {
+                    mapCopy.put(copies.get(entry.getKey()), copies.get(entry.getValue()));
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                final Collection<Object> collectionCopy = (Collection<Object>) copy;
+                for (final Object element: (Collection<?>) obj) {
+                    collectionCopy.add(copies.get(element));
+                }
+            }
+        }
+    }
+
+    private static Collection<Object> mapElements(final Map<?, ?> map) {
+        final List<Object> elements = new ArrayList<>(map.size() * 2);
+        for (final Map.Entry<?, ?> entry: map.entrySet()) {
+            elements.add(entry.getKey());
+            elements.add(entry.getValue());
+        }
+        return elements;
+    }
+
+    private static Object primitiveArrayClone(final Object array) {
+        final int length = Array.getLength(array);
+        final Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static ClassInfo getClassInfo(final Class<?> clazz) {
+        return classInfos.get(clazz);
+    }
+
+    private static ClassInfo createClassInfo(final Class<?> clazz) {
+        if (clazz.isArray()) {
+            return ARRAY;
+        }
+        if (clazz.isEnum() || SHARED_CLASSES.contains(clazz) || SHARED_CLASS_NAMES.contains(clazz.getName())) {
+            return SHARED;
+        }
+        if (clazz == StampedLock.class) {
+            // Locks of thread safe slot maps are never shared
+            try {
+                return new ClassInfo(Kind.NEW, null, clazz.getConstructor());
+            } catch (final NoSuchMethodException e) {
+                return UNSUPPORTED;
+            }
+        }
+        if (SLOT_MAP_CLASS_NAMES.contains(clazz.getName())) {
+            return createObjectClassInfo(clazz, true);
+        }
+        if (!Serializable.class.isAssignableFrom(clazz) || Externalizable.class.isAssignableFrom(clazz)) {
+            return UNSUPPORTED;
+        }
+        if (MAP_CLASSES.contains(clazz) || COLLECTION_CLASSES.contains(clazz)) {
+            final Constructor<?> constructor;
+            try {
+                constructor = clazz.getConstructor();
+            } catch (final NoSuchMethodException e) {
+                return UNSUPPORTED;
+            }
+            return new ClassInfo(MAP_CLASSES.contains(clazz) ? Kind.MAP : Kind.COLLECTION, null, constructor);
+        }
+        if (clazz == Date.class) {
+            return DATE;
+        }
+        if (hasMethod(clazz, "readResolve") || hasMethod(clazz, "writeReplace")) {
+            // Classes serialized in another form; known singletons are
+            // shared above
+            return UNSUPPORTED;
+        }
+        return createObjectClassInfo(clazz, false);
+    }
+
+    private static ClassInfo createObjectClassInfo(final Class<?> clazz, final boolean slotMap) {
+        final List<Field> fields = new ArrayList<>();
+        Class<?> serializableClass = clazz;
+        for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+            if (!slotMap && !Serializable.class.isAssignableFrom(c)) {
+                // Serialization doesn't restore the fields of
+                // non-serializable superclasses either
+                break;
+            }
+            if (c.getName().startsWith("java.")) {
+                // JDK classes' fields are inaccessible on newer JREs
+                return UNSUPPORTED;
+            }
+            final boolean restoresTransients = slotMap || hasMethod(c, "readObject", ObjectInputStream.class);
+            if (!slotMap && hasCustomSerialization(c) && !COPIED_CLASSES.contains(c)
+                    && !COPIED_CLASS_NAMES.contains(c.getName())) {
+                return UNSUPPORTED;
+            }
+            for (final Field field: c.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) && !restoresTransients) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            serializableClass = c;
+        }
+        // Same as serialization: invoke the no-arg constructor of the first
+        // non-serializable superclass
+        if (newConstructorForSerialization == null) {
+            return UNSUPPORTED;
+        }
+        final Class<?> superclass = serializableClass.getSuperclass();
+        final Constructor<?> constructor;
+        try {
+            final Constructor<?> superConstructor = superclass.getDeclaredConstructor();
+            constructor = (Constructor<?>) newConstructorForSerialization.invoke(reflectionFactory, clazz,
+                    superConstructor);
+        } catch (final Exception e) {
+            return UNSUPPORTED;
+        }
+        return new ClassInfo(Kind.OBJECT, fields.toArray(new Field[fields.size()]), constructor);
+    }
+
+    private static boolean hasCustomSerialization(final Class<?> clazz) {
+        if (hasMethod(clazz, "readObject", ObjectInputStream.class)
+                || hasMethod(clazz, "writeObject", ObjectOutputStream.class) || hasMethod(clazz, "readObjectNoData")
+                || hasMethod(clazz, "readResolve") || hasMethod(clazz, "writeReplace")) {
+            return true;
+        }
+        try {
+            clazz.getDeclaredField("serialPersistentFields");
+            return true;
+        } catch (final NoSuchFieldException e) {
+            return false;
+        }
+    }
+
+    private static boolean hasMethod(final Class<?> clazz, final String name, final Class<?>... parameterTypes) {
+        try {
+            clazz.getDeclaredMethod(name, parameterTypes);
+            return true;
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static class ClassInfo {
+        final Kind kind;
+        final Field[] fields;
+        final Constructor<?> constructor;
+
+        ClassInfo(final Kind kind, final Field[] fields, final Constructor<?> constructor) {
+            this.kind = kind;
+            this.fields = fields;
+            this.constructor = constructor;
+        }
+    }
+}
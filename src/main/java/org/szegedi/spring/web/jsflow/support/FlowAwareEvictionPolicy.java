@@ -0,0 +1,79 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A state eviction policy that discards the oldest state of the flow with the
+ * most stored states. The latest state of a flow is only discarded when every
+ * flow is down to its latest state, in which case the oldest state is
+ * discarded. This way, a long flow can't push out the states of other flows
+ * running in parallel (i.e. in other browser windows). States without a flow
+ * id are treated as a single flow.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class FlowAwareEvictionPolicy implements StateEvictionPolicy {
+    private boolean accessOrdered;
+
+    /**
+     * Sets whether retrieving a state makes it the latest state of its flow.
+     * Defaults to false.
+     *
+     * @param accessOrdered
+     */
+    public void setAccessOrdered(final boolean accessOrdered) {
+        this.accessOrdered = accessOrdered;
+    }
+
+    @Override
+    public boolean isAccessOrdered() {
+        return accessOrdered;
+    }
+
+    @Override
+    public int selectEvictedState(final List<? extends EvictableState> states) {
+        final Map<String, int[]> counts = new HashMap<>();
+        String largestFlowId = null;
+        int largestCount = 0;
+        for (final EvictableState state: states) {
+            int[] count = counts.get(state.getFlowId());
+            if (count == null) {
+                count = new int[1];
+                counts.put(state.getFlowId(), count);
+            }
+            // On ties, the flow with the older oldest state wins
+            if (++count[0] > largestCount) {
+                largestFlowId = state.getFlowId();
+                largestCount = count[0];
+            }
+        }
+        if (largestCount > 1) {
+            for (int i = 0;; ++i) {
+                final String flowId = states.get(i).getFlowId();
+                if (largestFlowId == null ? flowId == null : largestFlowId.equals(flowId)) {
+                    return i;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -34,6 +34,20 @@ public interface FlowStateIdGenerator {
      */
     public Long generateStateId(NativeContinuation state);
 
+    /**
+     * Generate the flow state id for the specified state as a primitive
+     * value. The default implementation unboxes the value returned from
+     * {@link #generateStateId(NativeContinuation)}; implementations should
+     * override it to avoid allocating an object for every id.
+     *
+     * @param state
+     * @return the new ID. Must not be negative.
+     * @since 1.4
+     */
+    public default long generateLongStateId(final NativeContinuation state) {
+        return generateStateId(state).longValue();
+    }
+
     /**
      * Returns true if the return value of
      * {@link #generateStateId(NativeContinuation)} depends on the passed state
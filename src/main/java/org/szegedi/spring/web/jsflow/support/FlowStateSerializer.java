@@ -28,6 +28,7 @@ import java.lang.reflect.UndeclaredThrowableException;
 import java.util.Collections;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
 import org.mozilla.javascript.NativeContinuation;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.serialize.ScriptableInputStream;
@@ -107,13 +108,36 @@ public abstract class FlowStateSerializer implements ApplicationContextAware, In
     protected byte[] serializeContinuation(final NativeContinuation state, final Map<Object, Object> stubbedFunctions,
             final StubProvider stubProvider) throws Exception {
         final ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        try (final ObjectOutputStream out = new ContinuationOutputStream(bout, state, stubbedFunctions, stubProvider)) {
-            out.writeObject(FunctionFingerprintManager.getFingerprints(state));
-            out.writeObject(state);
-        }
+        serializeContinuation(state, stubbedFunctions, stubProvider, bout);
         return bout.toByteArray();
     }
 
+    /**
+     * Serializes a continuation into a stream. Same as
+     * {@link #serializeContinuation(NativeContinuation, Map, StubProvider)},
+     * except it writes the serialized form into the passed stream. The stream
+     * is closed when this method returns.
+     *
+     * @param state
+     *            the continuation to serialize
+     * @param stubbedFunctions
+     *            a map that'll receive all mappings of stubs to functions.
+     *            Can be null.
+     * @param stubProvider
+     *            a provider of further stubs. Can be null.
+     * @param out
+     *            the stream to write the serialized form into
+     * @throws Exception
+     * @since 1.4
+     */
+    protected void serializeContinuation(final NativeContinuation state, final Map<Object, Object> stubbedFunctions,
+            final StubProvider stubProvider, final OutputStream out) throws Exception {
+        try (final ObjectOutputStream oout = new ContinuationOutputStream(out, state, stubbedFunctions, stubProvider)) {
+            oout.writeObject(FunctionFingerprintManager.getFingerprints(state));
+            oout.writeObject(state);
+        }
+    }
+
     /**
      * Deserializes a continuation. All stubs written during serialization are
      * resolved to appropriate objects within this application context.
@@ -131,14 +155,109 @@ public abstract class FlowStateSerializer implements ApplicationContextAware, In
      */
     protected NativeContinuation deserializeContinuation(final byte[] b, final StubResolver stubResolver)
             throws Exception {
-        try (final ObjectInputStream in = new ContinuationInputStream(new ByteArrayInputStream(b), stubResolver)) {
-            final long[][] fingerprints = (long[][])in.readObject();
-            final NativeContinuation cont = (NativeContinuation) in.readObject();
+        return deserializeContinuation(new ByteArrayInputStream(b), stubResolver);
+    }
+
+    /**
+     * Deserializes a continuation from a stream. Same as
+     * {@link #deserializeContinuation(byte[], StubResolver)}, except it reads
+     * the serialized form from the passed stream. The stream is closed when
+     * this method returns.
+     *
+     * @param in
+     *            the stream containing the serialized continuation
+     * @param stubResolver
+     *            a resolver of further stubs. Can be null.
+     * @return the deserialized continuation
+     * @throws Exception
+     * @since 1.4
+     */
+    protected NativeContinuation deserializeContinuation(final InputStream in, final StubResolver stubResolver)
+            throws Exception {
+        try (final ObjectInputStream oin = new ContinuationInputStream(in, stubResolver)) {
+            final long[][] fingerprints = (long[][])oin.readObject();
+            final NativeContinuation cont = (NativeContinuation) oin.readObject();
             FunctionFingerprintManager.checkFingerprints(cont, fingerprints);
             return cont;
         }
     }
 
+    /**
+     * Creates a deep copy of a continuation in memory, without serializing
+     * it. The copy is equivalent to the one produced by serializing the
+     * continuation with
+     * {@link #serializeContinuation(NativeContinuation, Map, StubProvider)}
+     * and deserializing it within the same JVM with the stubbed functions
+     * reconnected: all objects that would be replaced by stubs during
+     * serialization (functions, objects of the shared library scope,
+     * application context beans and objects stubbed by the stub provider) are
+     * shared between the continuation and the copy, as are immutable objects;
+     * everything else is copied. As the functions are shared, no fingerprints
+     * are checked.
+     *
+     * @param state
+     *            the continuation to copy
+     * @param stubProvider
+     *            a provider of further stubs. Can be null.
+     * @return the copy of the continuation, or null if the continuation
+     *         references objects that can't be copied in memory (i.e. objects
+     *         with custom serialization logic), in which case the caller
+     *         should fall back to serialization.
+     * @throws Exception
+     * @since 1.4
+     */
+    protected NativeContinuation cloneContinuation(final NativeContinuation state, final StubProvider stubProvider)
+            throws Exception {
+        final ContinuationOutputStream stubs = new ContinuationOutputStream(new OutputStream() {
+            @Override
+            public void write(final int b) {
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        }, state, null, stubProvider);
+        try {
+            return (NativeContinuation) ContinuationCloner.cloneGraph(state, new ContinuationCloner.SharedObjects() {
+                @Override
+                public boolean isShared(final Object obj) throws IOException {
+                    return stubs.isStubbed(obj);
+                }
+            });
+        } catch (final CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the provider of further stubs used when serializing states
+     * stored in a request. The default implementation returns null.
+     *
+     * @param request
+     *            the HTTP request storing a state
+     * @return the stub provider, or null if there is none
+     * @since 1.4
+     */
+    protected StubProvider getStubProvider(final HttpServletRequest request) {
+        return null;
+    }
+
+    /**
+     * Returns the stub provider of another serializer. Allows subclasses in
+     * other packages to use the stubs of the serializer they delegate to.
+     *
+     * @param serializer
+     *            the serializer
+     * @param request
+     *            the HTTP request storing a state
+     * @return the stub provider, or null if there is none
+     * @since 1.4
+     */
+    protected static StubProvider getStubProvider(final FlowStateSerializer serializer,
+            final HttpServletRequest request) {
+        return serializer.getStubProvider(request);
+    }
+
     private class ContinuationInputStream extends ScriptableInputStream {
         private final StubResolver stubResolver;
 
@@ -219,6 +338,10 @@ public abstract class FlowStateSerializer implements ApplicationContextAware, In
             }
             return super.replaceObject(obj);
         }
+
+        boolean isStubbed(final Object obj) throws IOException {
+            return replaceObject(obj) != obj;
+        }
     }
 
     private static class ApplicationContextBeanStub implements Serializable {
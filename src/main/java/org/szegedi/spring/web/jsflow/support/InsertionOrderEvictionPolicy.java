@@ -0,0 +1,37 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.util.List;
+
+/**
+ * A state eviction policy that discards the oldest stored state.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class InsertionOrderEvictionPolicy implements StateEvictionPolicy {
+    @Override
+    public boolean isAccessOrdered() {
+        return false;
+    }
+
+    @Override
+    public int selectEvictedState(final List<? extends EvictableState> states) {
+        return 0;
+    }
+}
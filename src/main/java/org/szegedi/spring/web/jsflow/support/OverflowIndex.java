@@ -0,0 +1,181 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ids of the states of a session that were moved to an overflow storage
+ * by an {@link OverflowWriter}, mapped to their ids in the overflow storage,
+ * from the oldest to the newest. An id is recorded as soon as the state is
+ * discarded from the session, while the states still being written are kept
+ * in memory, and are not replicated with the session. The index remembers
+ * whether it changed since it was last put into its session, so that only
+ * request threads put it into the session again. NOTE: this class is
+ * instrumented in Terracotta.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class OverflowIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Map<Long, String> overflowIds = new LinkedHashMap<>();
+    private transient Map<Long, Overflow> pending;
+    private transient boolean changed;
+
+    /**
+     * Records the id of a state discarded from the session, and keeps the
+     * state in memory until it is written. Only the specified number of most
+     * recent ids are kept.
+     *
+     * @param overflow
+     *            the discarded state
+     * @param maxIds
+     *            the maximum number of ids to keep
+     */
+    public synchronized void add(final Overflow overflow, final int maxIds) {
+        if (pending == null) {
+            pending = new HashMap<>();
+        }
+        final Long key = Long.valueOf(overflow.key);
+        pending.put(key, overflow);
+        overflowIds.remove(key);
+        overflowIds.put(key, overflow.overflowId);
+        for (final Iterator<Long> it = overflowIds.keySet().iterator(); overflowIds.size() > maxIds;) {
+            it.next();
+            it.remove();
+        }
+        changed = true;
+    }
+
+    /**
+     * Returns the discarded state with the key if it is still being written,
+     * or null.
+     *
+     * @param key
+     *            the key of the state in the session
+     * @return the state being written, or null
+     */
+    public synchronized Overflow getPending(final long key) {
+        return pending == null ? null : pending.get(Long.valueOf(key));
+    }
+
+    /**
+     * Returns the id in the overflow storage of the discarded state with the
+     * key, or null if it isn't known.
+     *
+     * @param key
+     *            the key of the state in the session
+     * @return the id of the state in the overflow storage, or null
+     */
+    public synchronized String getOverflowId(final long key) {
+        return overflowIds.get(Long.valueOf(key));
+    }
+
+    /**
+     * Forgets the states of a purged flow that are still being written.
+     *
+     * @param flowId
+     *            the id of the purged flow
+     */
+    public synchronized void removePendingFlow(final String flowId) {
+        if (pending != null) {
+            for (final Iterator<Overflow> it = pending.values().iterator(); it.hasNext();) {
+                if (flowId.equals(it.next().flowId)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the index changed since this method was last invoked,
+     * and so must be put into its session again to be replicated.
+     *
+     * @return true if the index changed
+     */
+    public synchronized boolean takeChanged() {
+        final boolean wasChanged = changed;
+        changed = false;
+        return wasChanged;
+    }
+
+    synchronized boolean isPending(final Overflow overflow) {
+        return pending != null && pending.get(Long.valueOf(overflow.key)) == overflow;
+    }
+
+    synchronized void written(final Overflow overflow) {
+        if (isPending(overflow)) {
+            pending.remove(Long.valueOf(overflow.key));
+        }
+    }
+
+    synchronized void failed(final Overflow overflow) {
+        if (isPending(overflow)) {
+            pending.remove(Long.valueOf(overflow.key));
+            overflowIds.remove(Long.valueOf(overflow.key));
+            changed = true;
+        }
+    }
+
+    /**
+     * A state discarded from a session, to be written to the overflow storage
+     * under an id reserved in it.
+     */
+    public static class Overflow {
+        final long key;
+        final String overflowId;
+        final byte[] state;
+        final boolean encoded;
+        final Map<Object, Object> stubsToFunctions;
+        final String flowId;
+
+        Overflow(final long key, final String overflowId, final byte[] state, final boolean encoded,
+                final Map<Object, Object> stubsToFunctions, final String flowId) {
+            this.key = key;
+            this.overflowId = overflowId;
+            this.state = state;
+            this.encoded = encoded;
+            this.stubsToFunctions = stubsToFunctions;
+            this.flowId = flowId;
+        }
+
+        /**
+         * Returns the serialized state, encoded if {@link #isEncoded()}.
+         */
+        public byte[] getState() {
+            return state;
+        }
+
+        public boolean isEncoded() {
+            return encoded;
+        }
+
+        public Map<Object, Object> getStubsToFunctions() {
+            return stubsToFunctions;
+        }
+
+        public String getFlowId() {
+            return flowId;
+        }
+    }
+}
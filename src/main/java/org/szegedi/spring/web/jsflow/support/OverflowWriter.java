@@ -0,0 +1,193 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.szegedi.spring.web.jsflow.codec.BinaryStateCodec;
+import org.szegedi.spring.web.jsflow.support.OverflowIndex.Overflow;
+
+/**
+ * Moves the states discarded from HTTP sessions to an overflow storage. The
+ * id of a discarded state is reserved in the overflow storage on the thread
+ * discarding it, and the serialized state is written under that id by a
+ * background thread. The states are exchanged with the overflow storage in
+ * serialized form: they are written as serialized by the discarding storage,
+ * encoded with its binary state codec, bypassing the serialization and the
+ * codec of the overflow storage, and are read back the same way. The
+ * background thread only works on the serialized states and the
+ * {@link OverflowIndex}, never on the sessions themselves.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class OverflowWriter {
+    private static final Log log = LogFactory.getLog(OverflowWriter.class);
+
+    private final ReservableFlowStateStorage storage;
+    private final BinaryStateCodec binaryStateCodec;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param storage
+     *            the overflow storage
+     * @param binaryStateCodec
+     *            the codec the states are written encoded with. Can be null.
+     * @param maxPendingWrites
+     *            the maximum number of states queued for writing. When the
+     *            queue is full, the thread discarding a state writes it
+     *            itself.
+     * @param threadName
+     *            the name of the background thread
+     */
+    public OverflowWriter(final ReservableFlowStateStorage storage, final BinaryStateCodec binaryStateCodec,
+            final int maxPendingWrites, final String threadName) {
+        this.storage = storage;
+        this.binaryStateCodec = binaryStateCodec;
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                maxPendingWrites), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Reserves the id of a discarded state in the overflow storage.
+     *
+     * @param request
+     *            the HTTP request discarding the state. Can be null if the
+     *            state is discarded by a background thread.
+     * @param key
+     *            the key of the state in its session
+     * @param state
+     *            the serialized state
+     * @param encoded
+     *            whether the serialized state is encoded with the binary
+     *            state codec
+     * @param stubsToFunctions
+     *            the stubbed functions of the serialized state. Can be null.
+     * @param flowId
+     *            the id of the flow the state belongs to. Can be null.
+     * @return the discarded state to add to the session's
+     *         {@link OverflowIndex} and to pass to
+     *         {@link #write(OverflowIndex, Overflow)}, or null if the
+     *         overflow storage can't reserve ids.
+     * @throws Exception
+     */
+    public Overflow reserve(final HttpServletRequest request, final long key, final byte[] state,
+            final boolean encoded, final Map<Object, Object> stubsToFunctions, final String flowId) throws Exception {
+        final String overflowId = storage.reserveStateId(request);
+        return overflowId == null ? null : new Overflow(key, overflowId, state, encoded, stubsToFunctions, flowId);
+    }
+
+    /**
+     * Queues a discarded state for writing. Must not be invoked while holding
+     * a lock the writes could wait for, as the state may be written on the
+     * current thread.
+     *
+     * @param index
+     *            the overflow index of the state's session
+     * @param overflow
+     *            the discarded state
+     */
+    public void write(final OverflowIndex index, final Overflow overflow) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeOverflow(index, overflow);
+            }
+        });
+    }
+
+    private void writeOverflow(final OverflowIndex index, final Overflow overflow) {
+        if (!index.isPending(overflow)) {
+            // Its flow was purged in the meantime
+            return;
+        }
+        try {
+            final byte[] state = binaryStateCodec == null || overflow.encoded ? overflow.state : binaryStateCodec
+                    .createEncoder().code(overflow.state);
+            storage.storeSerializedState(null, overflow.overflowId, state, overflow.flowId);
+            index.written(overflow);
+        } catch (final Exception e) {
+            index.failed(overflow);
+            log.warn("Failed to move state " + Long.toHexString(overflow.key) + " to the overflow storage", e);
+        }
+    }
+
+    /**
+     * Reads a state written to the overflow storage.
+     *
+     * @param request
+     *            the HTTP request retrieving the state
+     * @param overflowId
+     *            the id of the state in the overflow storage
+     * @return the decoded serialized state, or null if it is not found
+     * @throws Exception
+     */
+    public byte[] read(final HttpServletRequest request, final String overflowId) throws Exception {
+        final byte[] state = storage.getSerializedState(request, overflowId);
+        return state == null || binaryStateCodec == null ? state : binaryStateCodec.createDecoder().code(state);
+    }
+
+    /**
+     * Returns the id of the flow a state written to the overflow storage was
+     * stored with.
+     *
+     * @param request
+     *            the HTTP request retrieving the state
+     * @param overflowId
+     *            the id of the state in the overflow storage
+     * @return the id of the flow, or null if it is not known
+     */
+    public String getFlowId(final HttpServletRequest request, final String overflowId) {
+        return storage.getFlowId(request, overflowId);
+    }
+
+    /**
+     * Purges the states of a completed flow from the overflow storage.
+     *
+     * @param request
+     *            the HTTP request completing the flow
+     * @param flowId
+     *            the id of the flow
+     */
+    public void purgeFlow(final HttpServletRequest request, final String flowId) {
+        storage.purgeFlow(request, flowId);
+    }
+
+    /**
+     * Waits for the queued writes to complete, and stops the background
+     * thread.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
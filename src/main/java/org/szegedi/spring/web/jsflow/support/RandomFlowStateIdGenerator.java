@@ -20,7 +20,9 @@ import org.mozilla.javascript.NativeContinuation;
 
 /**
  * Default implementation of flow state id generator that uses a random number
- * generator.
+ * generator. All ids are generated from the same random number generator; for
+ * a generator that scales better with many concurrent requests, see
+ * {@link StripedRandomFlowStateIdGenerator}.
  * 
  * @author Attila Szegedi
  * @version $Id: $
@@ -34,7 +36,12 @@ public class RandomFlowStateIdGenerator implements FlowStateIdGenerator {
 
     @Override
     public Long generateStateId(final NativeContinuation c) {
-        return new Long(random.nextLong() & Long.MAX_VALUE);
+        return Long.valueOf(generateLongStateId(c));
+    }
+
+    @Override
+    public long generateLongStateId(final NativeContinuation c) {
+        return random.nextLong() & Long.MAX_VALUE;
     }
 
     @Override
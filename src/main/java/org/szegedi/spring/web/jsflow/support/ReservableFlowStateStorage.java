@@ -0,0 +1,68 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A flow state storage that is able to assign the id of a state before the
+ * state itself is stored. Storages that do so can have their writes deferred,
+ * i.e. by a {@link org.szegedi.spring.web.jsflow.TieredFlowStateStorage} in
+ * write-behind mode or by an
+ * {@link org.szegedi.spring.web.jsflow.AsyncFlowStateStorage}.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public abstract class ReservableFlowStateStorage extends AbstractFlowStateStorage {
+    /**
+     * Implement in subclasses to reserve the id of a state to be stored
+     * later with
+     * {@link #storeSerializedState(HttpServletRequest, String, byte[], String)}.
+     *
+     * @param request
+     *            the HTTP request that triggered the store operation. Can be
+     *            null if the state is stored by a background thread.
+     * @return the reserved id, or null if this storage is configured in a way
+     *         that doesn't allow reserving ids, in which case the caller must
+     *         store the state with
+     *         {@link #storeSerializedState(HttpServletRequest, byte[], String)}
+     *         instead.
+     * @throws Exception
+     */
+    protected abstract String reserveStateId(HttpServletRequest request) throws Exception;
+
+    /**
+     * Implement in subclasses to store the serialized state under a
+     * previously reserved id.
+     *
+     * @param request
+     *            the HTTP request that triggered the store operation. Can be
+     *            null if the store operation was deferred and is executed on
+     *            a background thread after the request completed.
+     * @param id
+     *            the id previously returned from
+     *            {@link #reserveStateId(HttpServletRequest)}.
+     * @param state
+     *            byte array representing the serialized state
+     * @param flowId
+     *            the id of the flow the state belongs to. Can be null.
+     * @throws Exception
+     */
+    protected abstract void storeSerializedState(HttpServletRequest request, String id, byte[] state, String flowId)
+            throws Exception;
+}
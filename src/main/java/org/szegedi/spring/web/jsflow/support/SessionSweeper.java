@@ -0,0 +1,184 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpSession;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps track of the sessions holding {@link StateMap}s, so they can be
+ * visited without a request, and visits them periodically on a low priority
+ * background thread, a few at a time. Used by
+ * {@link org.szegedi.spring.web.jsflow.HttpSessionFlowStateStorage} to
+ * compact idle sessions, to discard expired states and to shed states under
+ * memory pressure. A state map forgets its sweeper when it is unbound from
+ * its session.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class SessionSweeper {
+    private static final Log log = LogFactory.getLog(SessionSweeper.class);
+
+    private final Map<StateMap, HttpSession> sessions = new ConcurrentHashMap<>();
+    private Iterator<Map.Entry<StateMap, HttpSession>> sweepIterator;
+    private ScheduledExecutorService executor;
+
+    /**
+     * Starts tracking the session holding a state map, unless it is already
+     * tracked.
+     *
+     * @param stateMap
+     *            the state map
+     * @param session
+     *            the session holding it
+     */
+    public void track(final StateMap stateMap, final HttpSession session) {
+        stateMap.setSweeper(this);
+        sessions.putIfAbsent(stateMap, session);
+    }
+
+    void forget(final StateMap stateMap) {
+        sessions.remove(stateMap);
+    }
+
+    /**
+     * Starts the background thread visiting the tracked sessions.
+     *
+     * @param interval
+     *            the delay between two visits in milliseconds
+     * @param batchSize
+     *            the number of sessions visited in a single visit. The next
+     *            visit continues with the following sessions.
+     * @param visitor
+     *            the visitor of the sessions
+     * @param threadName
+     *            the name of the background thread
+     */
+    public synchronized void start(final long interval, final int batchSize, final SessionVisitor visitor,
+            final String threadName) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(batchSize, visitor);
+                } catch (final RuntimeException e) {
+                    // Must not propagate, or no further sweeps are run
+                    log.warn("Failed to sweep sessions", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the background thread, if it was started, and forgets all
+     * sessions.
+     *
+     * @param timeout
+     *            the maximum time to wait for a running visit to complete, in
+     *            milliseconds
+     * @throws InterruptedException
+     */
+    public synchronized void stop(final long timeout) throws InterruptedException {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            executor = null;
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Visits all tracked sessions on the current thread.
+     *
+     * @param visitor
+     *            the visitor of the sessions
+     */
+    public void visitAll(final SessionVisitor visitor) {
+        for (final Iterator<Map.Entry<StateMap, HttpSession>> it = sessions.entrySet().iterator(); it.hasNext();) {
+            visit(it, visitor);
+        }
+    }
+
+    /**
+     * Visits the next batch of tracked sessions. Only ever invoked from the
+     * background thread.
+     */
+    private void sweep(final int batchSize, final SessionVisitor visitor) {
+        if (sweepIterator == null) {
+            sweepIterator = sessions.entrySet().iterator();
+        }
+        for (int i = 0; i < batchSize; ++i) {
+            if (!sweepIterator.hasNext()) {
+                // Start over with the next sweep
+                sweepIterator = null;
+                return;
+            }
+            visit(sweepIterator, visitor);
+        }
+    }
+
+    /**
+     * Visits the next session of the iterator. Sessions that were
+     * invalidated, or whose state map was replaced, are forgotten.
+     */
+    private static void visit(final Iterator<Map.Entry<StateMap, HttpSession>> it, final SessionVisitor visitor) {
+        final Map.Entry<StateMap, HttpSession> entry = it.next();
+        try {
+            if (!visitor.visit(entry.getKey(), entry.getValue())) {
+                it.remove();
+            }
+        } catch (final IllegalStateException e) {
+            // The session was invalidated
+            it.remove();
+        }
+    }
+
+    /**
+     * Implemented by the visitors of the tracked sessions.
+     */
+    public static interface SessionVisitor {
+        /**
+         * Visits a tracked session.
+         *
+         * @param stateMap
+         *            the state map the session was tracked with
+         * @param session
+         *            the session
+         * @return false if the session no longer holds the state map, so it
+         *         is to be forgotten, otherwise true.
+         */
+        boolean visit(StateMap stateMap, HttpSession session);
+    }
+}
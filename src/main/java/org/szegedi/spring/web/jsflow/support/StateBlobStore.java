@@ -0,0 +1,124 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A store of serialized states shared by all flow state storages of a JVM
+ * that are configured with it, which lets them share a single copy of
+ * identical serialized states instead of each keeping its own. Storages pass
+ * every serialized state to {@link #intern(byte[])} and keep the returned
+ * array. The store only references the arrays weakly, so an array remains
+ * in the store as long as any storage holds it, and no explicit release is
+ * needed when a state is discarded or its session expires.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class StateBlobStore {
+    private final ConcurrentMap<Long, BlobReference> blobs = new ConcurrentHashMap<>();
+    private final ReferenceQueue<byte[]> queue = new ReferenceQueue<>();
+    private final AtomicLong sharedCount = new AtomicLong();
+
+    /**
+     * Returns the array with contents identical to the passed array that is
+     * already in the store, or puts the passed array into the store and
+     * returns it if there isn't one. The returned array must not be modified.
+     *
+     * @param blob
+     *            the serialized state
+     * @return the shared array with the same contents
+     */
+    public byte[] intern(final byte[] blob) {
+        expungeStaleBlobs();
+        final Long hash = Long.valueOf(hash(blob));
+        for (;;) {
+            final BlobReference ref = blobs.get(hash);
+            if (ref == null) {
+                if (blobs.putIfAbsent(hash, new BlobReference(hash, blob, queue)) == null) {
+                    return blob;
+                }
+                continue;
+            }
+            final byte[] existing = ref.get();
+            if (existing == null) {
+                blobs.replace(hash, ref, new BlobReference(hash, blob, queue));
+                continue;
+            }
+            if (Arrays.equals(existing, blob)) {
+                sharedCount.incrementAndGet();
+                return existing;
+            }
+            // Hash collision; don't share it
+            return blob;
+        }
+    }
+
+    /**
+     * Returns the number of distinct serialized states in the store.
+     *
+     * @return the number of distinct serialized states in the store.
+     */
+    public int size() {
+        expungeStaleBlobs();
+        return blobs.size();
+    }
+
+    /**
+     * Returns the number of times an already stored array was returned
+     * instead of the passed one.
+     *
+     * @return the number of shared serialized states.
+     */
+    public long getSharedCount() {
+        return sharedCount.get();
+    }
+
+    private void expungeStaleBlobs() {
+        for (Reference<? extends byte[]> ref; (ref = queue.poll()) != null;) {
+            final BlobReference blobRef = (BlobReference) ref;
+            blobs.remove(blobRef.hash, blobRef);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash.
+     */
+    private static long hash(final byte[] blob) {
+        long h = 0xcbf29ce484222325L;
+        for (final byte b: blob) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static class BlobReference extends WeakReference<byte[]> {
+        final Long hash;
+
+        BlobReference(final Long hash, final byte[] blob, final ReferenceQueue<byte[]> queue) {
+            super(blob, queue);
+            this.hash = hash;
+        }
+    }
+}
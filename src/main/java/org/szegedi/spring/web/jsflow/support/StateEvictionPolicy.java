@@ -0,0 +1,69 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.util.List;
+
+/**
+ * An interface for objects that choose which state to discard when a storage
+ * holding a limited number of states, i.e. a
+ * {@link org.szegedi.spring.web.jsflow.HttpSessionFlowStateStorage}, is full.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public interface StateEvictionPolicy {
+    /**
+     * Returns true if retrieving a state should move it to the end of the
+     * eviction order, as if it was stored again. If false, the states are
+     * ordered by the time they were stored.
+     *
+     * @return whether the states are ordered by their last access.
+     */
+    public boolean isAccessOrdered();
+
+    /**
+     * Chooses the state to discard.
+     *
+     * @param states
+     *            the stored states, in eviction order: oldest (or least
+     *            recently accessed) first, newest last.
+     * @return the index of the state to discard in the list.
+     */
+    public int selectEvictedState(List<? extends EvictableState> states);
+
+    /**
+     * The information about a stored state available to eviction policies.
+     */
+    public static interface EvictableState {
+        /**
+         * Returns the id of the flow the state belongs to.
+         *
+         * @return the id of the flow, or null if not known.
+         */
+        public String getFlowId();
+
+        /**
+         * Returns an estimate of how often the state was retrieved recently.
+         * The estimate is a small number that is periodically halved, so it
+         * reflects recent more than past retrievals.
+         *
+         * @return the access frequency of the state.
+         */
+        public int getFrequency();
+    }
+}
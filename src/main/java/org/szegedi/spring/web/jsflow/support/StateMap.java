@@ -0,0 +1,687 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.mozilla.javascript.NativeContinuation;
+import org.szegedi.spring.web.jsflow.support.StateEvictionPolicy.EvictableState;
+
+/**
+ * The states of a session, keyed by their primitive long ids and ordered
+ * from the oldest to the newest. It is an open addressing hash table with
+ * linear probing, doubly linked in insertion order, kept in parallel
+ * arrays. Apart from the serialized state itself, no objects are allocated
+ * per state. The maps of stubbed functions are only kept for states that
+ * have any, and are not replicated with the session. Live states are
+ * kept in another lazily allocated array; they are serialized when the
+ * map itself is serialized. When states are kept in separate session
+ * attributes, the serialized states are not kept in the map, which then
+ * serves as their index. States may be kept encoded, with the decoded
+ * forms of the latest states cached in another lazily allocated array
+ * that is not replicated. A state stored by several flows, as happens
+ * when identical states are deduplicated, keeps a reference count for each
+ * of its flows in another lazily allocated array, and is only freed once
+ * no flow references it. The time each state was stored is kept, so
+ * expired states can be found without looking at the states. The map
+ * remembers whether it was compacted as part of an idle session since a
+ * state was last stored. When it is unbound from its session, it
+ * unregisters itself from the {@link SessionSweeper} tracking its session.
+ * The map is guarded by its read-write lock, so states can be retrieved
+ * concurrently. Used by
+ * {@link org.szegedi.spring.web.jsflow.HttpSessionFlowStateStorage}. NOTE:
+ * this class is instrumented in Terracotta, so it must not be replaced with a
+ * subclass of a logically managed class such as LinkedHashMap.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class StateMap implements Serializable, HttpSessionBindingListener {
+    private static final long serialVersionUID = 1L;
+    private static final Log log = LogFactory.getLog(StateMap.class);
+    public static final int NIL = -1;
+    // Markers of unused slots in the nexts array
+    private static final int FREE = -2;
+    private static final int DELETED = -3;
+    private static final int MAX_FREQUENCY = 15;
+
+    private long[] keys;
+    private byte[][] states;
+    private boolean[] encoded;
+    private String[] flowIds;
+    private Map<String, Integer>[] flowReferences;
+    private byte[] frequencies;
+    private long[] timestamps;
+    private int[] prevs;
+    private int[] nexts;
+    private transient Map<Object, Object>[] stubsToFunctions;
+    private transient byte[][] decodedStates;
+    private transient NativeContinuation[] liveStates;
+    private transient int liveCount;
+    private transient LiveStateSerializer liveStateSerializer;
+    private transient volatile SessionSweeper sweeper;
+    private int head;
+    private int tail;
+    private int size;
+    private int deleted;
+    private boolean compacted;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param expectedSize
+     *            the number of states the map is sized for
+     */
+    public StateMap(final int expectedSize) {
+        allocate(tableSizeFor(expectedSize + 1));
+    }
+
+    /**
+     * Returns the lock guarding the map. Reading the map requires its read
+     * lock, modifying it requires its write lock.
+     */
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    private static int tableSizeFor(final int size) {
+        // At most half full, so the probes stay short
+        return Integer.highestOneBit(Math.max(8, size * 2) - 1) << 1;
+    }
+
+    private void allocate(final int tableSize) {
+        keys = new long[tableSize];
+        states = new byte[tableSize][];
+        encoded = new boolean[tableSize];
+        flowIds = new String[tableSize];
+        frequencies = new byte[tableSize];
+        timestamps = new long[tableSize];
+        prevs = new int[tableSize];
+        nexts = new int[tableSize];
+        Arrays.fill(nexts, FREE);
+        stubsToFunctions = null;
+        flowReferences = null;
+        decodedStates = null;
+        liveStates = null;
+        liveCount = 0;
+        head = NIL;
+        tail = NIL;
+        size = 0;
+        deleted = 0;
+    }
+
+    private int hash(final long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & (keys.length - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int first() {
+        return head;
+    }
+
+    public int next(final int slot) {
+        return nexts[slot];
+    }
+
+    public long getKey(final int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Returns the state in the slot, encoded if the state is encoded.
+     */
+    public byte[] getState(final int slot) {
+        return states[slot];
+    }
+
+    /**
+     * Returns the state in the slot if it is not encoded, or its cached
+     * decoded form, or null if neither is available.
+     */
+    public byte[] getDecodedState(final int slot) {
+        if (decodedStates != null && decodedStates[slot] != null) {
+            return decodedStates[slot];
+        }
+        return encoded[slot] ? null : states[slot];
+    }
+
+    public String getFlowId(final int slot) {
+        return flowIds[slot];
+    }
+
+    public Map<Object, Object> getStubsToFunctions(final int slot) {
+        return stubsToFunctions == null ? null : stubsToFunctions[slot];
+    }
+
+    public NativeContinuation getLiveState(final int slot) {
+        return liveStates == null ? null : liveStates[slot];
+    }
+
+    /**
+     * Returns the slot of the state with the key, or {@link #NIL}.
+     */
+    public int find(final long key) {
+        final int mask = keys.length - 1;
+        for (int slot = hash(key);; slot = (slot + 1) & mask) {
+            final int next = nexts[slot];
+            if (next == FREE) {
+                return NIL;
+            }
+            if (next != DELETED && keys[slot] == key) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Stores a state. A state replacing another one with the same key
+     * keeps its place in the order.
+     */
+    public int put(final long key, final byte[] state, final Map<Object, Object> stubs, final String flowId,
+            final NativeContinuation live) {
+        int slot = find(key);
+        if (slot == NIL) {
+            if ((size + deleted + 1) * 2 > keys.length) {
+                rehash();
+            }
+            slot = insert(key);
+        }
+        states[slot] = state;
+        flowIds[slot] = flowId;
+        setFlowReferences(slot, null);
+        frequencies[slot] = 0;
+        timestamps[slot] = System.currentTimeMillis();
+        compacted = false;
+        encoded[slot] = false;
+        setDecodedState(slot, null);
+        setStubsToFunctions(slot, stubs);
+        setLiveState(slot, live);
+        return slot;
+    }
+
+    /**
+     * Adds a reference from a flow to the state in the slot, which becomes
+     * the latest state of that flow.
+     */
+    public void addReference(final int slot, final String flowId) {
+        Map<String, Integer> references = flowReferences == null ? null : flowReferences[slot];
+        if (references == null) {
+            references = new HashMap<>();
+            references.put(flowIds[slot], Integer.valueOf(1));
+            setFlowReferences(slot, references);
+        }
+        final Integer count = references.get(flowId);
+        references.put(flowId, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+        flowIds[slot] = flowId;
+    }
+
+    /**
+     * Returns the number of times the flow references the state in the
+     * slot.
+     */
+    public int getReferenceCount(final int slot, final String flowId) {
+        final Map<String, Integer> references = flowReferences == null ? null : flowReferences[slot];
+        if (references == null) {
+            return equal(flowId, flowIds[slot]) ? 1 : 0;
+        }
+        final Integer count = references.get(flowId);
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * Drops at most the specified number of references from the flow to the
+     * state in the slot. Returns true if no flow references the state any
+     * more, in which case the caller is expected to remove it.
+     */
+    public boolean removeReferences(final int slot, final String flowId, final int count) {
+        final Map<String, Integer> references = flowReferences == null ? null : flowReferences[slot];
+        if (references == null) {
+            return count > 0 && equal(flowId, flowIds[slot]);
+        }
+        final Integer current = references.get(flowId);
+        if (current != null && count > 0) {
+            if (current.intValue() > count) {
+                references.put(flowId, Integer.valueOf(current.intValue() - count));
+            } else {
+                references.remove(flowId);
+                if (references.isEmpty()) {
+                    return true;
+                }
+                if (equal(flowId, flowIds[slot])) {
+                    flowIds[slot] = references.keySet().iterator().next();
+                }
+            }
+            if (references.size() == 1 && references.values().iterator().next().intValue() == 1) {
+                setFlowReferences(slot, null);
+            }
+        }
+        return false;
+    }
+
+    private void setFlowReferences(final int slot, final Map<String, Integer> references) {
+        if (references != null) {
+            if (flowReferences == null) {
+                flowReferences = newMaps(keys.length);
+            }
+            flowReferences[slot] = references;
+        } else if (flowReferences != null) {
+            flowReferences[slot] = null;
+        }
+    }
+
+    private static boolean equal(final String flowId, final String otherFlowId) {
+        return flowId == null ? otherFlowId == null : flowId.equals(otherFlowId);
+    }
+
+    private void setDecodedState(final int slot, final byte[] decoded) {
+        if (decoded != null) {
+            if (decodedStates == null) {
+                decodedStates = new byte[keys.length][];
+            }
+            decodedStates[slot] = decoded;
+        } else if (decodedStates != null) {
+            decodedStates[slot] = null;
+        }
+    }
+
+    /**
+     * Marks the state in the slot as the latest of its flow. The decoded
+     * form of an encoded latest state is cached, and the cached decoded
+     * forms of the earlier states of the flow are dropped. Returns the
+     * earlier states of the flow that are not encoded, or null if there
+     * are none.
+     */
+    public List<Entry> setLatestState(final int slot, final boolean isEncoded, final byte[] decoded) {
+        encoded[slot] = isEncoded;
+        setDecodedState(slot, isEncoded ? decoded : null);
+        final String flowId = flowIds[slot];
+        List<Entry> unencoded = null;
+        for (int i = head; i != NIL; i = nexts[i]) {
+            if (i != slot && equal(flowId, flowIds[i])) {
+                setDecodedState(i, null);
+                if (!encoded[i] && states[i] != null) {
+                    if (unencoded == null) {
+                        unencoded = new ArrayList<>();
+                    }
+                    unencoded.add(new Entry(i));
+                }
+            }
+        }
+        return unencoded;
+    }
+
+    public long getTimestamp(final int slot) {
+        return timestamps[slot];
+    }
+
+    /**
+     * Marks the state in the slot as stored now.
+     */
+    public void renew(final int slot) {
+        timestamps[slot] = System.currentTimeMillis();
+    }
+
+    public boolean hasStatesStoredBefore(final long time) {
+        for (int slot = head; slot != NIL; slot = nexts[slot]) {
+            if (timestamps[slot] < time) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void setSweeper(final SessionSweeper sweeper) {
+        this.sweeper = sweeper;
+    }
+
+    @Override
+    public void valueBound(final HttpSessionBindingEvent event) {
+    }
+
+    @Override
+    public void valueUnbound(final HttpSessionBindingEvent event) {
+        final SessionSweeper s = sweeper;
+        if (s != null) {
+            s.forget(this);
+        }
+    }
+
+    public void dropDecodedStates() {
+        decodedStates = null;
+    }
+
+    public boolean isCompacted() {
+        return compacted;
+    }
+
+    /**
+     * Marks the map as compacted, and drops the cached decoded forms of
+     * the states. If the states are to be encoded, returns the states
+     * that are not encoded, and also the encoded ones if they are to be
+     * encoded again, otherwise returns null.
+     */
+    public List<Entry> compact(final boolean encode, final boolean reencode) {
+        compacted = true;
+        decodedStates = null;
+        if (!encode) {
+            return null;
+        }
+        final List<Entry> entries = new ArrayList<>();
+        for (int slot = head; slot != NIL; slot = nexts[slot]) {
+            if (states[slot] != null && (reencode || !encoded[slot])) {
+                entries.add(new Entry(slot));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces a state with its (newly) encoded form, unless it was
+     * removed or replaced since the entry was created.
+     */
+    public void replaceWithEncoded(final Entry entry, final byte[] encodedState) {
+        final int slot = find(entry.key);
+        if (slot != NIL && states[slot] == entry.state && encoded[slot] == entry.encoded) {
+            states[slot] = encodedState;
+            encoded[slot] = true;
+        }
+    }
+
+    private int insert(final long key) {
+        final int mask = keys.length - 1;
+        int slot = hash(key);
+        while (nexts[slot] >= NIL) {
+            slot = (slot + 1) & mask;
+        }
+        if (nexts[slot] == DELETED) {
+            --deleted;
+        }
+        keys[slot] = key;
+        linkLast(slot);
+        ++size;
+        return slot;
+    }
+
+    private void setStubsToFunctions(final int slot, final Map<Object, Object> stubs) {
+        if (stubs != null && !stubs.isEmpty()) {
+            if (stubsToFunctions == null) {
+                stubsToFunctions = newMaps(keys.length);
+            }
+            stubsToFunctions[slot] = stubs;
+        } else if (stubsToFunctions != null) {
+            stubsToFunctions[slot] = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Map<K, V>[] newMaps(final int length) {
+        // Arrays of a parameterized type can't be created; each array only
+        // ever holds maps of a single type
+        return (Map<K, V>[]) new Map<?, ?>[length];
+    }
+
+    private void setLiveState(final int slot, final NativeContinuation live) {
+        if (live != null) {
+            if (liveStates == null) {
+                liveStates = new NativeContinuation[keys.length];
+            }
+            if (liveStates[slot] == null) {
+                ++liveCount;
+            }
+            liveStates[slot] = live;
+        } else if (liveStates != null && liveStates[slot] != null) {
+            liveStates[slot] = null;
+            --liveCount;
+        }
+    }
+
+    /**
+     * Sets the serializer of the live states, used when live states are to
+     * be serialized. Must be set before a live state is put into the map.
+     */
+    public void setLiveStateSerializer(final LiveStateSerializer liveStateSerializer) {
+        this.liveStateSerializer = liveStateSerializer;
+    }
+
+    /**
+     * Serializes the least recent live states, so that at most the
+     * specified number of states remain live.
+     */
+    public void serializeLiveStates(final int maxLiveStates) {
+        for (int slot = head; liveCount > maxLiveStates && slot != NIL;) {
+            final int next = nexts[slot];
+            if (liveStates[slot] != null) {
+                final Map<Object, Object> stubs = new HashMap<>();
+                try {
+                    states[slot] = liveStateSerializer.serialize(liveStates[slot], stubs);
+                    encoded[slot] = liveStateSerializer.isEncoding();
+                    setStubsToFunctions(slot, stubs);
+                    setLiveState(slot, null);
+                } catch (final Exception e) {
+                    log.warn("Failed to serialize state " + Long.toHexString(keys[slot]), e);
+                    remove(slot);
+                }
+            }
+            slot = next;
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        lock.writeLock().lock();
+        try {
+            serializeLiveStates(0);
+            out.defaultWriteObject();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void rehash() {
+        final long[] oldKeys = keys;
+        final byte[][] oldStates = states;
+        final boolean[] oldEncoded = encoded;
+        final String[] oldFlowIds = flowIds;
+        final byte[] oldFrequencies = frequencies;
+        final long[] oldTimestamps = timestamps;
+        final int[] oldNexts = nexts;
+        final Map<Object, Object>[] oldStubsToFunctions = stubsToFunctions;
+        final Map<String, Integer>[] oldFlowReferences = flowReferences;
+        final byte[][] oldDecodedStates = decodedStates;
+        final NativeContinuation[] oldLiveStates = liveStates;
+        final int oldHead = head;
+        allocate(tableSizeFor(size + 1));
+        for (int oldSlot = oldHead; oldSlot != NIL; oldSlot = oldNexts[oldSlot]) {
+            final int slot = insert(oldKeys[oldSlot]);
+            states[slot] = oldStates[oldSlot];
+            encoded[slot] = oldEncoded[oldSlot];
+            flowIds[slot] = oldFlowIds[oldSlot];
+            frequencies[slot] = oldFrequencies[oldSlot];
+            timestamps[slot] = oldTimestamps[oldSlot];
+            if (oldStubsToFunctions != null) {
+                setStubsToFunctions(slot, oldStubsToFunctions[oldSlot]);
+            }
+            if (oldFlowReferences != null) {
+                setFlowReferences(slot, oldFlowReferences[oldSlot]);
+            }
+            if (oldDecodedStates != null) {
+                setDecodedState(slot, oldDecodedStates[oldSlot]);
+            }
+            if (oldLiveStates != null) {
+                setLiveState(slot, oldLiveStates[oldSlot]);
+            }
+        }
+    }
+
+    /**
+     * Removes the state in the slot. The slots of other states don't
+     * change, so it's safe to remove states while iterating.
+     */
+    public void remove(final int slot) {
+        unlink(slot);
+        nexts[slot] = DELETED;
+        states[slot] = null;
+        encoded[slot] = false;
+        flowIds[slot] = null;
+        setFlowReferences(slot, null);
+        if (stubsToFunctions != null) {
+            stubsToFunctions[slot] = null;
+        }
+        setDecodedState(slot, null);
+        setLiveState(slot, null);
+        --size;
+        ++deleted;
+    }
+
+    public void moveToEnd(final int slot) {
+        if (slot != tail) {
+            unlink(slot);
+            linkLast(slot);
+        }
+    }
+
+    private void linkLast(final int slot) {
+        prevs[slot] = tail;
+        nexts[slot] = NIL;
+        if (tail == NIL) {
+            head = slot;
+        } else {
+            nexts[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    private void unlink(final int slot) {
+        final int prev = prevs[slot];
+        final int next = nexts[slot];
+        if (prev == NIL) {
+            head = next;
+        } else {
+            nexts[prev] = next;
+        }
+        if (next == NIL) {
+            tail = prev;
+        } else {
+            prevs[next] = prev;
+        }
+    }
+
+    /**
+     * Counts a retrieval of the state. When a counter saturates, all
+     * counters are halved, so they reflect recent retrievals.
+     */
+    public void recordAccess(final int slot) {
+        if (++frequencies[slot] == MAX_FREQUENCY) {
+            for (int i = head; i != NIL; i = nexts[i]) {
+                frequencies[i] >>>= 1;
+            }
+        }
+    }
+
+    /**
+     * Returns views of the states for an eviction policy, in order.
+     */
+    public List<Entry> getEntries() {
+        final List<Entry> entries = new ArrayList<>(size);
+        for (int slot = head; slot != NIL; slot = nexts[slot]) {
+            entries.add(new Entry(slot));
+        }
+        return entries;
+    }
+
+    /**
+     * A view of a state, as it was when the entry was created.
+     */
+    public class Entry implements EvictableState {
+        final int slot;
+        final long key;
+        final byte[] state;
+        final boolean encoded;
+
+        Entry(final int slot) {
+            this.slot = slot;
+            key = keys[slot];
+            state = states[slot];
+            encoded = StateMap.this.encoded[slot];
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the state, encoded if {@link #isEncoded()}.
+         */
+        public byte[] getState() {
+            return state;
+        }
+
+        public boolean isEncoded() {
+            return encoded;
+        }
+
+        @Override
+        public String getFlowId() {
+            return flowIds[slot];
+        }
+
+        @Override
+        public int getFrequency() {
+            return frequencies[slot];
+        }
+    }
+
+    /**
+     * Serializes the live states of a map when they are no longer to be kept
+     * live.
+     */
+    public static interface LiveStateSerializer {
+        /**
+         * Serializes a live state into the form it is kept in the map.
+         *
+         * @param live
+         *            the live state
+         * @param stubsToFunctions
+         *            a map that receives the stubbed functions
+         * @return the serialized state, encoded if {@link #isEncoding()}
+         * @throws Exception
+         */
+        byte[] serialize(NativeContinuation live, Map<Object, Object> stubsToFunctions) throws Exception;
+
+        /**
+         * Returns whether the serialized states are encoded.
+         */
+        boolean isEncoding();
+    }
+}
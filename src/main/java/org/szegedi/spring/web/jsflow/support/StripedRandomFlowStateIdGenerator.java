@@ -0,0 +1,122 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.security.SecureRandom;
+import org.mozilla.javascript.NativeContinuation;
+
+/**
+ * A flow state id generator that generates random ids without contention
+ * between threads. Instead of a single shared random number generator, it
+ * uses several independently locked {@link SecureRandom} instances (stripes),
+ * chosen by the id of the current thread. Each stripe draws random bytes from
+ * its generator in batches, and generates ids from its buffer until it is
+ * exhausted, so the generator's locking and entropy gathering overhead is
+ * only incurred once per batch. Unlike thread-local generators, the stripes
+ * don't outlive the web application on pooled container threads.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class StripedRandomFlowStateIdGenerator implements FlowStateIdGenerator {
+    private int stripeCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+    private int batchSize = 64;
+    private volatile Stripe[] stripes;
+
+    /**
+     * Sets the number of independent random number generators. It is rounded
+     * up to a power of two. Defaults to twice the number of available
+     * processors.
+     *
+     * @param stripeCount
+     */
+    public void setStripeCount(final int stripeCount) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount <= 0");
+        }
+        this.stripeCount = stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = null;
+    }
+
+    /**
+     * Sets the number of ids whose random bytes are drawn from the random
+     * number generator at once. Defaults to 64.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(final int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize <= 0");
+        }
+        this.batchSize = batchSize;
+        stripes = null;
+    }
+
+    @Override
+    public Long generateStateId(final NativeContinuation state) {
+        return Long.valueOf(generateLongStateId(state));
+    }
+
+    @Override
+    public long generateLongStateId(final NativeContinuation state) {
+        Stripe[] stripes = this.stripes;
+        if (stripes == null) {
+            stripes = createStripes();
+        }
+        final long h = Thread.currentThread().getId();
+        return stripes[(int) (h ^ (h >>> 16)) & (stripes.length - 1)].nextId();
+    }
+
+    private synchronized Stripe[] createStripes() {
+        if (stripes == null) {
+            final Stripe[] newStripes = new Stripe[stripeCount];
+            for (int i = 0; i < newStripes.length; ++i) {
+                newStripes[i] = new Stripe(batchSize);
+            }
+            stripes = newStripes;
+        }
+        return stripes;
+    }
+
+    @Override
+    public boolean dependsOnContinuation() {
+        return false;
+    }
+
+    private static class Stripe {
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] buffer;
+        private int position;
+
+        Stripe(final int batchSize) {
+            buffer = new byte[batchSize * 8];
+            position = buffer.length;
+        }
+
+        synchronized long nextId() {
+            if (position == buffer.length) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            long id = 0;
+            for (int i = 0; i < 8; ++i) {
+                id = (id << 8) | (buffer[position++] & 0xff);
+            }
+            return id & Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mozilla.javascript.NativeContinuation;
+
+/**
+ * A flow state id generator that generates monotonically increasing ids
+ * composed of a 41-bit millisecond timestamp, a 10-bit node id, and a 12-bit
+ * sequence number. Ids generated by one instance are unique and increasing;
+ * ids generated by instances with different node ids never collide. As the
+ * ids are ordered by their creation time, they cluster well in B-tree indexes
+ * and can be used to select states by age (see {@link #getTimestamp(long)} and
+ * {@link #getMinimumId(long)}). When more than 4096 ids are requested within a
+ * millisecond, the generator borrows from the following milliseconds. The ids
+ * are predictable, so storages using them should pair them with a random
+ * value, as {@link org.szegedi.spring.web.jsflow.JdbcFlowStateStorage} does.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ */
+public class TimeOrderedFlowStateIdGenerator implements FlowStateIdGenerator {
+    /**
+     * The epoch of the timestamps in the ids, 2020-01-01T00:00:00Z.
+     */
+    private static final long EPOCH = 1577836800000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    /**
+     * The largest node id that can be set.
+     */
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    private final AtomicLong lastTimeAndSequence = new AtomicLong();
+    private long nodeBits;
+
+    public TimeOrderedFlowStateIdGenerator() {
+        setNodeId(new SecureRandom().nextInt(MAX_NODE_ID + 1));
+    }
+
+    /**
+     * Sets the id of this node. Every JVM generating ids for the same storage
+     * must use a different node id. If not set, a random node id is chosen,
+     * which is only adequate if there is a single such JVM.
+     *
+     * @param nodeId
+     *            the node id, between 0 and {@link #MAX_NODE_ID}.
+     */
+    public void setNodeId(final int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("nodeId not between 0 and " + MAX_NODE_ID);
+        }
+        nodeBits = ((long) nodeId) << SEQUENCE_BITS;
+    }
+
+    @Override
+    public Long generateStateId(final NativeContinuation state) {
+        return Long.valueOf(generateLongStateId(state));
+    }
+
+    @Override
+    public long generateLongStateId(final NativeContinuation state) {
+        for (;;) {
+            final long last = lastTimeAndSequence.get();
+            final long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            // Sequence overflow carries over into the timestamp
+            final long next = now > last ? now : last + 1;
+            if (lastTimeAndSequence.compareAndSet(last, next)) {
+                return ((next & ~SEQUENCE_MASK) << NODE_BITS) | nodeBits | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    @Override
+    public boolean dependsOnContinuation() {
+        return false;
+    }
+
+    /**
+     * Returns the creation time of an id generated by this class.
+     *
+     * @param id
+     *            the id
+     * @return the creation time of the id, in milliseconds since the Java
+     *         epoch.
+     */
+    public static long getTimestamp(final long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * Returns the smallest id that can be generated at or after the specified
+     * time. All ids generated before the specified time are smaller than it.
+     *
+     * @param timestamp
+     *            the time in milliseconds since the Java epoch
+     * @return the smallest id generated at or after the time.
+     */
+    public static long getMinimumId(final long timestamp) {
+        return Math.max(0, timestamp - EPOCH) << (NODE_BITS + SEQUENCE_BITS);
+    }
+}
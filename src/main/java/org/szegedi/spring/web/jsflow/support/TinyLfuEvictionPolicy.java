@@ -0,0 +1,67 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow.support;
+
+import java.util.List;
+
+/**
+ * A frequency aware state eviction policy, modeled after W-TinyLFU. The most
+ * recently accessed states form an admission window; the rest of the states
+ * form the main region. When a state must be discarded, the state that most
+ * recently left the window competes with the least recently accessed state of
+ * the main region, and the one retrieved less frequently is discarded. This
+ * protects states that users keep returning to (i.e. a menu or a search
+ * results page) from being pushed out by a burst of states that are never
+ * revisited, while the window still gives new states a chance to be
+ * retrieved before they are judged.
+ *
+ * @author Attila Szegedi
+ * @version $Id: $
+ * @since 1.4
+ */
+public class TinyLfuEvictionPolicy implements StateEvictionPolicy {
+    private double windowRatio = 0.01;
+
+    /**
+     * Sets the size of the admission window, as a fraction of the stored
+     * states. The window always holds at least one state. Defaults to 0.01.
+     *
+     * @param windowRatio
+     */
+    public void setWindowRatio(final double windowRatio) {
+        if (windowRatio < 0 || windowRatio >= 1) {
+            throw new IllegalArgumentException("windowRatio not in [0, 1)");
+        }
+        this.windowRatio = windowRatio;
+    }
+
+    @Override
+    public boolean isAccessOrdered() {
+        return true;
+    }
+
+    @Override
+    public int selectEvictedState(final List<? extends EvictableState> states) {
+        final int windowSize = Math.max(1, (int) Math.round(states.size() * windowRatio));
+        final int candidate = states.size() - windowSize - 1;
+        if (candidate <= 0) {
+            return 0;
+        }
+        // On ties, the victim is kept, as the candidate had less time to be
+        // retrieved
+        return states.get(candidate).getFrequency() > states.get(0).getFrequency() ? 0 : candidate;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+   Copyright 2026 Attila Szegedi
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.szegedi.spring.web.jsflow;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextAction;
+import org.mozilla.javascript.ContinuationPending;
+import org.mozilla.javascript.NativeContinuation;
+import org.mozilla.javascript.ScriptableObject;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.core.io.FileSystemResourceLoader;
+
+/**
+ * A contention benchmark for {@link HttpSessionFlowStateStorage}. Runs a
+ * number of sessions, each with several threads concurrently storing and
+ * retrieving states, the way parallel AJAX requests of a single page do, and
+ * reports the throughput. Run it with the test classpath, optionally passing
+ * the number of sessions, the number of threads per session, and the number
+ * of store and retrieve pairs per thread as arguments. It isn't run as part
+ * of the build.
+ *
+ * @author Attila Szegedi
+ * @version $Id$
+ * @since 1.4
+ */
+public class HttpSessionFlowStateStorageBenchmark {
+    private static final String SCRIPT = "var data = [];\n"
+            + "for (var i = 0; i < 100; ++i) { data.push({ index: i, name: 'item' + i }); }\n"
+            + "wait();\n";
+
+    public static void main(final String[] args) throws Exception {
+        final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int threadsPerSession = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        final File scriptDir = File.createTempFile("benchmark", "");
+        scriptDir.delete();
+        scriptDir.mkdir();
+        final File scriptFile = new File(scriptDir, "benchmark.js");
+        try (final OutputStream out = new FileOutputStream(scriptFile)) {
+            out.write(SCRIPT.getBytes("UTF-8"));
+        }
+        try {
+            final StaticApplicationContext ctx = new StaticApplicationContext();
+            ctx.refresh();
+            final ScriptStorage scriptStorage = new ScriptStorage();
+            scriptStorage.setResourceLoader(new FileSystemResourceLoader());
+            scriptStorage.setPrefix(scriptDir.toURI().toString());
+            scriptStorage.afterPropertiesSet();
+            final HttpSessionFlowStateStorage storage = new HttpSessionFlowStateStorage();
+            storage.setApplicationContext(ctx);
+            storage.setScriptStorage(scriptStorage);
+            storage.afterPropertiesSet();
+            try {
+                // Warm up, then measure
+                run(storage, scriptStorage, sessions, threadsPerSession, iterations);
+                final long elapsed = run(storage, scriptStorage, sessions, threadsPerSession, iterations);
+                final long operations = 2L * sessions * threadsPerSession * iterations;
+                System.out.println(sessions + " sessions, " + threadsPerSession + " threads per session: "
+                        + operations + " operations in " + elapsed / 1000000 + " ms, "
+                        + operations * 1000000000L / elapsed + " operations/s");
+            } finally {
+                storage.destroy();
+            }
+        } finally {
+            scriptFile.delete();
+            scriptDir.delete();
+        }
+    }
+
+    private static long run(final HttpSessionFlowStateStorage storage, final ScriptStorage scriptStorage,
+            final int sessions, final int threadsPerSession, final int iterations) throws Exception {
+        final CountDownLatch ready = new CountDownLatch(sessions * threadsPerSession);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(sessions * threadsPerSession);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < sessions; ++i) {
+            final HttpServletRequest request = createRequest(createSession("session" + i));
+            for (int j = 0; j < threadsPerSession; ++j) {
+                final String flowId = "flow" + j;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            scriptStorage.getContextFactory().call(new ContextAction() {
+                                @Override
+                                public Object run(final Context cx) {
+                                    final NativeContinuation state = createState(cx, scriptStorage);
+                                    ready.countDown();
+                                    try {
+                                        start.await();
+                                    } catch (final InterruptedException e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                    for (int k = 0; k < iterations; ++k) {
+                                        final String id = storage.storeState(request, state, flowId);
+                                        if (storage.getState(request, id) == null) {
+                                            throw new IllegalStateException("State " + id + " not found");
+                                        }
+                                    }
+                                    return null;
+                                }
+                            });
+                        } catch (final Throwable t) {
+                            failure.compareAndSet(null, t);
+                            ready.countDown();
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+        }
+        for (final Thread thread: threads) {
+            thread.start();
+        }
+        ready.await();
+        final long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - startTime;
+        if (failure.get() != null) {
+            throw new RuntimeException("Benchmark failed", failure.get());
+        }
+        return elapsed;
+    }
+
+    private static NativeContinuation createState(final Context cx, final ScriptStorage scriptStorage) {
+        cx.setOptimizationLevel(-1);
+        final ScriptableObject scope = scriptStorage.createNewTopLevelScope(cx);
+        final HostObject hostObject = (HostObject) cx.newObject(scope, "HostObject");
+        ScriptableObject.defineProperty(scope, "__host__", hostObject, ScriptableObject.DONTENUM);
+        try {
+            cx.executeScriptWithContinuations(scriptStorage.getScript("benchmark.js"), scope);
+        } catch (final ContinuationPending e) {
+            ScriptableObject.deleteProperty(scope, "__host__");
+            return (NativeContinuation) e.getContinuation();
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+        throw new IllegalStateException("Script didn't wait");
+    }
+
+    private static HttpSession createSession(final String id) {
+        final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        final HttpSession[] session = new HttpSession[1];
+        session[0] = (HttpSession) Proxy.newProxyInstance(HttpSession.class.getClassLoader(),
+                new Class<?>[] { HttpSession.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("getId")) {
+                            return id;
+                        } else if (name.equals("getAttribute")) {
+                            return attributes.get(args[0]);
+                        } else if (name.equals("getAttributeNames")) {
+                            return Collections.enumeration(attributes.keySet());
+                        } else if (name.equals("setAttribute")) {
+                            if (args[1] == null) {
+                                unbind((String) args[0], attributes.remove(args[0]));
+                            } else {
+                                final Object old = attributes.put((String) args[0], args[1]);
+                                if (old != args[1]) {
+                                    unbind((String) args[0], old);
+                                    if (args[1] instanceof HttpSessionBindingListener) {
+                                        ((HttpSessionBindingListener) args[1]).valueBound(
+                                                new HttpSessionBindingEvent(session[0], (String) args[0]));
+                                    }
+                                }
+                            }
+                            return null;
+                        } else if (name.equals("removeAttribute")) {
+                            unbind((String) args[0], attributes.remove(args[0]));
+                            return null;
+                        } else if (name.equals("hashCode")) {
+                            return Integer.valueOf(System.identityHashCode(proxy));
+                        } else if (name.equals("equals")) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else if (name.equals("toString")) {
+                            return id;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+
+                    private void unbind(final String name, final Object value) {
+                        if (value instanceof HttpSessionBindingListener) {
+                            ((HttpSessionBindingListener) value).valueUnbound(
+                                    new HttpSessionBindingEvent(session[0], name));
+                        }
+                    }
+                });
+        return session[0];
+    }
+
+    private static HttpServletRequest createRequest(final HttpSession session) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if (name.equals("getSession")) {
+                            return session;
+                        } else if (name.equals("hashCode")) {
+                            return Integer.valueOf(System.identityHashCode(proxy));
+                        } else if (name.equals("equals")) {
+                            return Boolean.valueOf(proxy == args[0]);
+                        } else if (name.equals("toString")) {
+                            return "benchmark request";
+                        }
+                        // Attributes and parameters aren't used by the storage
+                        return null;
+                    }
+                });
+    }
+}